@@ -64,6 +64,122 @@ public class BitTorrentConfig {
      */
     private int trackerInterval = 1800;
 
+    /**
+     * Number of block requests kept in flight per peer while downloading,
+     * until the peer's round-trip time and rate have been measured
+     */
+    private int requestPipelineDepth = 16;
+
+    /**
+     * Lower bound of the per-peer request window
+     */
+    private int requestPipelineMin = 2;
+
+    /**
+     * Upper bound of the per-peer request window
+     */
+    private int requestPipelineMax = 128;
+
+    /**
+     * Size of a block request in bytes (most clients refuse more than 16 KiB)
+     */
+    private int blockSize = 16384;
+
+    /**
+     * Time in milliseconds after which an unanswered block request is sent again
+     */
+    private long requestTimeout = 30000;
+
+    /**
+     * Time in milliseconds without any block after which a peer is dropped as snubbed
+     */
+    private long snubTimeout = 10000;
+
+    /**
+     * Bytes ahead of the playback position downloaded in order in streaming mode
+     */
+    private long streamingWindow = 8 * 1024 * 1024;
+
+    /**
+     * Time in milliseconds a range request waits for its pieces to be downloaded
+     */
+    private long streamTimeout = 30000;
+
+    /**
+     * How piece data is stored: file, mmap or memory (nothing written to disk)
+     */
+    private String storageType = "file";
+
+    /**
+     * Verified pieces held in memory before they are written to disk in one
+     * batch, in bytes (0 = write every piece straight through)
+     */
+    private long writeCacheSize = 64 * 1024 * 1024;
+
+    /**
+     * Longest time in milliseconds a written piece stays only in memory
+     */
+    private long writeCacheFlushInterval = 5000;
+
+    /**
+     * Data files kept open at once across all torrents, downloading or
+     * seeding; idle ones are closed least recently used first
+     */
+    private int maxOpenFiles = 512;
+
+    /**
+     * Direct buffers kept for reading received blocks from the socket
+     * (0 = read blocks into new arrays)
+     */
+    private int receiveBuffers = 1024;
+
+    /**
+     * Bytes of direct buffers kept for downloading pieces into once their
+     * pieces are written (0 = allocate a buffer for every piece)
+     */
+    private long pieceBufferPoolSize = 64 * 1024 * 1024;
+
+    /**
+     * Bytes of whole pieces kept in memory for seeding (0 = read every block
+     * from disk)
+     */
+    private long pieceCacheSize = 256L * 1024 * 1024;
+
+    /**
+     * Threads reading blocks for uploads
+     */
+    private int diskReadThreads = 4;
+
+    /**
+     * Bytes of reads queued before peer connections stop reading requests
+     */
+    private long diskReadQueueSize = 16 * 1024 * 1024;
+
+    /**
+     * Threads writing downloaded pieces
+     */
+    private int diskWriteThreads = 2;
+
+    /**
+     * Bytes of writes queued before downloads stop requesting blocks
+     */
+    private long diskWriteQueueSize = 64 * 1024 * 1024;
+
+    /**
+     * Threads hashing pieces during a recheck (0 = one per core)
+     */
+    private int recheckThreads = 0;
+
+    /**
+     * Windows of a recheck read from disk at the same time
+     */
+    private int recheckIoConcurrency = 2;
+
+    /**
+     * Size in bytes of the file windows a recheck reads into memory at once
+     */
+    private long recheckWindow = 4 * 1024 * 1024;
+
     // Explicit Getters to avoid Lombok issues during simple compilation
     public String getPeerId() { return peerId; }
     public void setPeerId(String peerId) { this.peerId = peerId; }
@@ -73,4 +189,70 @@ public class BitTorrentConfig {
 
     public String getDownloadDir() { return downloadDir; }
     public void setDownloadDir(String downloadDir) { this.downloadDir = downloadDir; }
+
+    public int getRequestPipelineDepth() { return requestPipelineDepth; }
+    public void setRequestPipelineDepth(int requestPipelineDepth) { this.requestPipelineDepth = requestPipelineDepth; }
+
+    public int getRequestPipelineMin() { return requestPipelineMin; }
+    public void setRequestPipelineMin(int requestPipelineMin) { this.requestPipelineMin = requestPipelineMin; }
+
+    public int getRequestPipelineMax() { return requestPipelineMax; }
+    public void setRequestPipelineMax(int requestPipelineMax) { this.requestPipelineMax = requestPipelineMax; }
+
+    public int getBlockSize() { return blockSize; }
+    public void setBlockSize(int blockSize) { this.blockSize = blockSize; }
+
+    public long getStreamingWindow() { return streamingWindow; }
+    public void setStreamingWindow(long streamingWindow) { this.streamingWindow = streamingWindow; }
+
+    public long getStreamTimeout() { return streamTimeout; }
+    public void setStreamTimeout(long streamTimeout) { this.streamTimeout = streamTimeout; }
+
+    public String getStorageType() { return storageType; }
+    public void setStorageType(String storageType) { this.storageType = storageType; }
+
+    public long getWriteCacheSize() { return writeCacheSize; }
+    public void setWriteCacheSize(long writeCacheSize) { this.writeCacheSize = writeCacheSize; }
+
+    public long getWriteCacheFlushInterval() { return writeCacheFlushInterval; }
+    public void setWriteCacheFlushInterval(long writeCacheFlushInterval) { this.writeCacheFlushInterval = writeCacheFlushInterval; }
+
+    public int getMaxOpenFiles() { return maxOpenFiles; }
+    public void setMaxOpenFiles(int maxOpenFiles) { this.maxOpenFiles = maxOpenFiles; }
+
+    public int getReceiveBuffers() { return receiveBuffers; }
+    public void setReceiveBuffers(int receiveBuffers) { this.receiveBuffers = receiveBuffers; }
+
+    public long getPieceBufferPoolSize() { return pieceBufferPoolSize; }
+    public void setPieceBufferPoolSize(long pieceBufferPoolSize) { this.pieceBufferPoolSize = pieceBufferPoolSize; }
+
+    public long getPieceCacheSize() { return pieceCacheSize; }
+    public void setPieceCacheSize(long pieceCacheSize) { this.pieceCacheSize = pieceCacheSize; }
+
+    public int getDiskReadThreads() { return diskReadThreads; }
+    public void setDiskReadThreads(int diskReadThreads) { this.diskReadThreads = diskReadThreads; }
+
+    public long getDiskReadQueueSize() { return diskReadQueueSize; }
+    public void setDiskReadQueueSize(long diskReadQueueSize) { this.diskReadQueueSize = diskReadQueueSize; }
+
+    public int getDiskWriteThreads() { return diskWriteThreads; }
+    public void setDiskWriteThreads(int diskWriteThreads) { this.diskWriteThreads = diskWriteThreads; }
+
+    public long getDiskWriteQueueSize() { return diskWriteQueueSize; }
+    public void setDiskWriteQueueSize(long diskWriteQueueSize) { this.diskWriteQueueSize = diskWriteQueueSize; }
+
+    public int getRecheckThreads() { return recheckThreads; }
+    public void setRecheckThreads(int recheckThreads) { this.recheckThreads = recheckThreads; }
+
+    public int getRecheckIoConcurrency() { return recheckIoConcurrency; }
+    public void setRecheckIoConcurrency(int recheckIoConcurrency) { this.recheckIoConcurrency = recheckIoConcurrency; }
+
+    public long getRecheckWindow() { return recheckWindow; }
+    public void setRecheckWindow(long recheckWindow) { this.recheckWindow = recheckWindow; }
+
+    public long getRequestTimeout() { return requestTimeout; }
+    public void setRequestTimeout(long requestTimeout) { this.requestTimeout = requestTimeout; }
+
+    public long getSnubTimeout() { return snubTimeout; }
+    public void setSnubTimeout(long snubTimeout) { this.snubTimeout = snubTimeout; }
 }
@@ -24,6 +24,7 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
@@ -38,6 +39,7 @@ import bittorrent.service.BitTorrentService;
 import bittorrent.service.DownloadJob;
 import bittorrent.torrent.Torrent;
 import bittorrent.torrent.TorrentInfo;
+import bittorrent.torrent.VerifiedPieces;
 
 @RestController
 @RequestMapping("/api")
@@ -49,6 +51,10 @@ public class BitTorrentController {
 	private final bittorrent.service.storage.TorrentPersistenceService persistenceService;
 	private final bittorrent.config.BitTorrentConfig config;
 
+	// Largest response to a single range request on a streamed download
+	private static final int MAX_STREAM_CHUNK = 2 * 1024 * 1024;
+	private static final java.util.regex.Pattern RANGE_PATTERN = java.util.regex.Pattern.compile("bytes=(\\d*)-(\\d*)");
+
 	@Autowired
 	public BitTorrentController(BitTorrentService bitTorrentService, PeerServer peerServer, TorrentProgressService progressService,
 			bittorrent.service.storage.TorrentPersistenceService persistenceService, bittorrent.config.BitTorrentConfig config) {
@@ -136,7 +142,16 @@ public class BitTorrentController {
 	@PostMapping("/torrents/download")
 	public ResponseEntity<Map<String, Object>> startDownload(
 			@RequestParam("file") MultipartFile file,
-			@RequestParam(value = "outputFileName", required = false) String outputFileName) {
+			@RequestParam(value = "outputFileName", required = false) String outputFileName,
+			@RequestParam(value = "mode", required = false, defaultValue = "rarest-first") String mode) {
+		final DownloadJob.Mode downloadMode;
+		try {
+			downloadMode = DownloadJob.Mode.valueOf(mode.trim().toUpperCase().replace('-', '_'));
+		} catch (IllegalArgumentException e) {
+			return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+				.body(Map.of("error", "Unknown download mode: " + mode + " (expected rarest-first or streaming)"));
+		}
+		
 		try {
 			final var tempTorrentFile = java.io.File.createTempFile("torrent-", ".torrent");
 			file.transferTo(tempTorrentFile);
@@ -150,13 +165,14 @@ public class BitTorrentController {
 				(torrentInfo.name() != null ? torrentInfo.name() : "download");
 			
 			// Start async download
-			final String jobId = bitTorrentService.startDownload(tempTorrentFile.getAbsolutePath(), fileName);
+			final String jobId = bitTorrentService.startDownload(tempTorrentFile.getAbsolutePath(), fileName, downloadMode);
 			
 			tempTorrentFile.delete();
 			
 			Map<String, Object> response = new HashMap<>();
 			response.put("jobId", jobId);
 			response.put("status", "started");
+			response.put("mode", downloadMode.name().toLowerCase().replace('_', '-'));
 			response.put("message", "Download started. Use /api/torrents/download/" + jobId + "/status to check progress.");
 			
 			return ResponseEntity.accepted().body(response);
@@ -184,6 +200,7 @@ public class BitTorrentController {
 		response.put("status", job.getStatus().name().toLowerCase());
 		response.put("fileName", job.getFileName());
 		response.put("infoHash", job.getInfoHashHex());
+		response.put("mode", job.getMode().name().toLowerCase().replace('_', '-'));
 		response.put("totalPieces", job.getTotalPieces());
 		response.put("completedPieces", job.getCompletedPieces());
 		response.put("progress", job.getProgress());
@@ -194,7 +211,7 @@ public class BitTorrentController {
 		
 		if (job.getStatus() == DownloadJob.Status.COMPLETED && job.getDownloadedFile() != null) {
 			response.put("filePath", job.getDownloadedFile().getAbsolutePath());
-			response.put("fileSize", job.getDownloadedFile().length());
+			response.put("fileSize", bitTorrentService.getFileLength(jobId));
 		}
 		
 		return ResponseEntity.ok(response);
@@ -223,6 +240,11 @@ public class BitTorrentController {
 				.body(new ByteArrayResource("Downloaded file not found".getBytes()));
 		}
 		
+		if (job.getDownloadedFile().isDirectory()) {
+			return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+				.body(new ByteArrayResource(("Multi-file torrent downloaded to directory: " + job.getDownloadedFile().getAbsolutePath()).getBytes()));
+		}
+		
 		final var resource = new FileSystemResource(job.getDownloadedFile());
 		
 		return ResponseEntity.ok()
@@ -231,6 +253,210 @@ public class BitTorrentController {
 			.body(resource);
 	}
 	
+	/**
+	 * Stream a byte range of a download, which may still be in progress
+	 * GET /api/torrents/download/{jobId}/stream
+	 */
+	@GetMapping("/torrents/download/{jobId}/stream")
+	public ResponseEntity<Resource> streamDownload(
+			@PathVariable String jobId,
+			@RequestHeader(value = HttpHeaders.RANGE, required = false) String range) {
+		final DownloadJob job = bitTorrentService.getDownloadJob(jobId);
+		if (job == null) {
+			return ResponseEntity.status(HttpStatus.NOT_FOUND)
+				.body(new ByteArrayResource("Download job not found".getBytes()));
+		}
+		
+		final long fileLength = bitTorrentService.getFileLength(jobId);
+		if (fileLength < 0) {
+			return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+				.body(new ByteArrayResource("Download has not started yet".getBytes()));
+		}
+		
+		// Only a single range is supported; no header means from the start
+		long start = 0;
+		long end = fileLength - 1;
+		if (range != null) {
+			final var matcher = RANGE_PATTERN.matcher(range.trim());
+			if (!matcher.matches() || (matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) {
+				return rangeNotSatisfiable(fileLength);
+			}
+			
+			try {
+				if (matcher.group(1).isEmpty()) {
+					// Suffix range: the last N bytes
+					start = Math.max(0, fileLength - Long.parseLong(matcher.group(2)));
+				} else {
+					start = Long.parseLong(matcher.group(1));
+					if (!matcher.group(2).isEmpty()) {
+						end = Math.min(end, Long.parseLong(matcher.group(2)));
+					}
+				}
+			} catch (NumberFormatException e) {
+				// More digits than a long holds
+				return rangeNotSatisfiable(fileLength);
+			}
+		}
+		
+		if (start >= fileLength || start > end) {
+			return rangeNotSatisfiable(fileLength);
+		}
+		
+		// Answer open-ended ranges in chunks so playback can start early
+		end = Math.min(end, start + MAX_STREAM_CHUNK - 1);
+		
+		try {
+			final byte[] data = bitTorrentService.readRange(jobId, start, end, config.getStreamTimeout());
+			if (data == null) {
+				return ResponseEntity.status(HttpStatus.GATEWAY_TIMEOUT)
+					.body(new ByteArrayResource("Timed out waiting for pieces".getBytes()));
+			}
+			
+			String contentType = java.net.URLConnection.guessContentTypeFromName(job.getFileName());
+			if (contentType == null) {
+				contentType = "application/octet-stream";
+			}
+			
+			return ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+				.header(HttpHeaders.ACCEPT_RANGES, "bytes")
+				.header(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + fileLength)
+				.header(HttpHeaders.CONTENT_TYPE, contentType)
+				.contentLength(data.length)
+				.body(new ByteArrayResource(data));
+		} catch (IllegalStateException e) {
+			// Skipped or never verified data is not served
+			return rangeNotSatisfiable(fileLength);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+				.body(new ByteArrayResource("Interrupted".getBytes()));
+		} catch (IOException e) {
+			return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+				.body(new ByteArrayResource(("Failed to read file: " + e.getMessage()).getBytes()));
+		}
+	}
+	
+	private ResponseEntity<Resource> rangeNotSatisfiable(long fileLength) {
+		return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+			.header(HttpHeaders.CONTENT_RANGE, "bytes */" + fileLength)
+			.build();
+	}
+	
+	/**
+	 * Move the playback position of a streaming download
+	 * POST /api/torrents/download/{jobId}/playback
+	 */
+	@PostMapping("/torrents/download/{jobId}/playback")
+	public ResponseEntity<Map<String, Object>> setPlaybackPosition(
+			@PathVariable String jobId,
+			@RequestParam("position") long position) {
+		try {
+			bitTorrentService.setPlaybackPosition(jobId, position);
+			Map<String, Object> response = new HashMap<>();
+			response.put("jobId", jobId);
+			response.put("position", position);
+			return ResponseEntity.ok(response);
+		} catch (IllegalArgumentException e) {
+			return ResponseEntity.status(HttpStatus.NOT_FOUND)
+				.body(Map.of("error", e.getMessage()));
+		} catch (IllegalStateException e) {
+			return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+				.body(Map.of("error", e.getMessage()));
+		}
+	}
+	
+	/**
+	 * List the files of a multi-file download with their priorities
+	 * GET /api/torrents/download/{jobId}/files
+	 */
+	@GetMapping("/torrents/download/{jobId}/files")
+	public ResponseEntity<Map<String, Object>> getDownloadFiles(@PathVariable String jobId) {
+		final DownloadJob job = bitTorrentService.getDownloadJob(jobId);
+		if (job == null) {
+			return ResponseEntity.status(HttpStatus.NOT_FOUND)
+				.body(Map.of("error", "Job not found: " + jobId));
+		}
+		
+		final var info = job.getTorrentInfo();
+		if (info == null || !info.isMultiFile()) {
+			return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+				.body(Map.of("error", "Job is not a multi-file download: " + jobId));
+		}
+		
+		final var picker = job.getPiecePicker();
+		final var completed = picker != null 
+			? picker.getCompletedPieces() 
+			: VerifiedPieces.forTorrent(job.getInfoHashHex(), info.pieces().size()).snapshot();
+		
+		List<Map<String, Object>> files = new ArrayList<>();
+		for (int fileIndex = 0; fileIndex < info.files().size(); fileIndex++) {
+			final var file = info.files().get(fileIndex);
+			
+			// Share of the file's pieces that are verified
+			double progress = 100.0;
+			if (file.length() > 0) {
+				final int firstPiece = (int) (file.offset() / info.pieceLength());
+				final int lastPiece = (int) ((file.offset() + file.length() - 1) / info.pieceLength());
+				progress = completed.get(firstPiece, lastPiece + 1).cardinality() * 100.0 / (lastPiece - firstPiece + 1);
+			}
+			
+			Map<String, Object> fileInfo = new HashMap<>();
+			fileInfo.put("index", fileIndex);
+			fileInfo.put("path", file.relativePath());
+			fileInfo.put("length", file.length());
+			fileInfo.put("priority", job.getFilePriority(fileIndex).name().toLowerCase());
+			fileInfo.put("progress", progress);
+			files.add(fileInfo);
+		}
+		
+		Map<String, Object> response = new HashMap<>();
+		response.put("jobId", jobId);
+		response.put("files", files);
+		response.put("count", files.size());
+		return ResponseEntity.ok(response);
+	}
+	
+	/**
+	 * Set the priority of files of a multi-file download; all files if none
+	 * are given
+	 * POST /api/torrents/download/{jobId}/files/priority
+	 */
+	@PostMapping("/torrents/download/{jobId}/files/priority")
+	public ResponseEntity<Map<String, Object>> setFilePriority(
+			@PathVariable String jobId,
+			@RequestParam("priority") String priority,
+			@RequestParam(value = "files", required = false) List<Integer> files) {
+		final DownloadJob.FilePriority filePriority;
+		try {
+			filePriority = DownloadJob.FilePriority.valueOf(priority.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+				.body(Map.of("error", "Unknown priority: " + priority + " (expected skip, low, normal or high)"));
+		}
+		
+		try {
+			bitTorrentService.setFilePriority(jobId, files, filePriority);
+			final DownloadJob job = bitTorrentService.getDownloadJob(jobId);
+			
+			Map<String, Object> response = new HashMap<>();
+			response.put("jobId", jobId);
+			response.put("priority", filePriority.name().toLowerCase());
+			response.put("files", files != null ? files : "all");
+			response.put("totalPieces", job.getTotalPieces());
+			response.put("completedPieces", job.getCompletedPieces());
+			return ResponseEntity.ok(response);
+		} catch (IllegalArgumentException e) {
+			return ResponseEntity.status(HttpStatus.NOT_FOUND)
+				.body(Map.of("error", e.getMessage()));
+		} catch (IllegalStateException e) {
+			return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+				.body(Map.of("error", e.getMessage()));
+		} catch (IOException e) {
+			return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+				.body(Map.of("error", "Failed to continue download: " + e.getMessage()));
+		}
+	}
+	
 	/**
 	 * Retry a failed download job
 	 * POST /api/torrents/download/{jobId}/retry
@@ -529,6 +755,56 @@ public class BitTorrentController {
 		}
 	}
 
+	/**
+	 * Get counters of the seeding piece cache
+	 * GET /api/cache/pieces
+	 */
+	@GetMapping("/cache/pieces")
+	public ResponseEntity<Map<String, Object>> getPieceCacheStats() {
+		final var stats = bittorrent.storage.PieceCache.getInstance().getStats();
+		final long lookups = stats.hits() + stats.misses();
+		
+		Map<String, Object> response = new HashMap<>();
+		response.put("hits", stats.hits());
+		response.put("misses", stats.misses());
+		response.put("evictions", stats.evictions());
+		response.put("hitRatio", lookups > 0 ? (double) stats.hits() / lookups : 0.0);
+		response.put("pieces", stats.pieces());
+		response.put("bytes", stats.bytes());
+		response.put("capacity", stats.capacity());
+		
+		return ResponseEntity.ok(response);
+	}
+
+	/**
+	 * Get depths and latencies of the disk read and write queues
+	 * GET /api/disk-io
+	 */
+	@GetMapping("/disk-io")
+	public ResponseEntity<Map<String, Object>> getDiskIoStats() {
+		final var diskIo = bittorrent.storage.DiskIo.getInstance();
+		
+		Map<String, Object> response = new HashMap<>();
+		response.put("reads", toMap(diskIo.getReadStats()));
+		response.put("writes", toMap(diskIo.getWriteStats()));
+		
+		return ResponseEntity.ok(response);
+	}
+	
+	private static Map<String, Object> toMap(bittorrent.storage.DiskIo.QueueStats stats) {
+		Map<String, Object> map = new HashMap<>();
+		map.put("threads", stats.threads());
+		map.put("queuedOperations", stats.queuedOperations());
+		map.put("queuedBytes", stats.queuedBytes());
+		map.put("maxQueuedBytes", stats.maxQueuedBytes());
+		map.put("completedOperations", stats.completedOperations());
+		map.put("failedOperations", stats.failedOperations());
+		map.put("averageWaitMillis", stats.averageWaitMillis());
+		map.put("averageServiceMillis", stats.averageServiceMillis());
+		map.put("maxLatencyMillis", stats.maxLatencyMillis());
+		return map;
+	}
+
 	/**
 	 * Stop seeding a torrent (remove from active torrents)
 	 * DELETE /api/torrents/{infoHash}
@@ -659,6 +935,29 @@ public class BitTorrentController {
 		}
 	}
 
+	/**
+	 * Hash the data file of a torrent again to find out which pieces are intact.
+	 * Progress is sent on GET /api/torrents/{infoHash}/progress
+	 * POST /api/torrents/{infoHash}/recheck
+	 */
+	@PostMapping("/torrents/{infoHash}/recheck")
+	public ResponseEntity<Map<String, Object>> recheckTorrent(@PathVariable String infoHash) {
+		try {
+			int totalPieces = bitTorrentService.recheckTorrent(infoHash);
+			Map<String, Object> response = new HashMap<>();
+			response.put("infoHash", infoHash);
+			response.put("totalPieces", totalPieces);
+			response.put("message", "Recheck started");
+			return ResponseEntity.status(HttpStatus.ACCEPTED).body(response);
+		} catch (IllegalArgumentException e) {
+			return ResponseEntity.status(HttpStatus.NOT_FOUND)
+				.body(Map.of("error", e.getMessage()));
+		} catch (IllegalStateException e) {
+			return ResponseEntity.status(HttpStatus.CONFLICT)
+				.body(Map.of("error", e.getMessage()));
+		}
+	}
+
 	/**
 	 * Get detailed peer statistics for a download job
 	 * GET /api/torrents/download/{jobId}/peers
@@ -732,24 +1031,50 @@ public class BitTorrentController {
 
 	/**
 	 * Create a .torrent file from an uploaded payload.
+	 * Several files (e.g. a folder upload, whose file names carry their relative paths)
+	 * become a multi-file torrent named after the "name" parameter.
 	 * POST /api/torrents/create
 	 */
 	@PostMapping("/torrents/create")
 	public ResponseEntity<Resource> createTorrent(
-			@RequestParam("file") MultipartFile dataFile,
+			@RequestParam("file") MultipartFile[] dataFiles,
+			@RequestParam(value = "name", required = false) String name,
 			@RequestParam(value = "outputName", required = false) String outputName) {
-		File tempInput = null;
+		File tempDir = null;
 		File tempOutput = null;
 		try {
-			tempInput = File.createTempFile("create-input-", ".bin");
-			dataFile.transferTo(tempInput);
+			if (dataFiles.length == 0) {
+				return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+					.body(new ByteArrayResource("No file uploaded".getBytes()));
+			}
+
+			// Keep the uploaded names, they end up in the torrent
+			tempDir = Files.createTempDirectory("create-input-").toFile();
+			File input;
+			if (dataFiles.length == 1) {
+				String fileName = new File(String.valueOf(dataFiles[0].getOriginalFilename())).getName();
+				input = new File(tempDir, fileName.isBlank() ? "new-torrent" : fileName);
+				dataFiles[0].transferTo(input);
+			} else {
+				String rootName = name != null && !name.isBlank() ? new File(name.trim()).getName() : "new-torrent";
+				input = new File(tempDir, rootName);
+				for (MultipartFile dataFile : dataFiles) {
+					File target = new File(input, String.valueOf(dataFile.getOriginalFilename())).getCanonicalFile();
+					if (!target.toPath().startsWith(input.getCanonicalFile().toPath()) || target.equals(input.getCanonicalFile())) {
+						return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+							.body(new ByteArrayResource(("Invalid file name: " + dataFile.getOriginalFilename()).getBytes()));
+					}
+					target.getParentFile().mkdirs();
+					dataFile.transferTo(target);
+				}
+			}
 
 			tempOutput = File.createTempFile("create-output-", ".torrent");
-			bitTorrentService.createTorrent(tempInput.getAbsolutePath(), tempOutput.getAbsolutePath());
+			bitTorrentService.createTorrent(input.getAbsolutePath(), tempOutput.getAbsolutePath());
 
 			String downloadName = outputName != null && !outputName.isBlank()
 				? outputName.trim()
-				: deriveBaseName(dataFile.getOriginalFilename());
+				: dataFiles.length == 1 ? deriveBaseName(dataFiles[0].getOriginalFilename()) : input.getName();
 			if (!downloadName.endsWith(".torrent")) {
 				downloadName += ".torrent";
 			}
@@ -765,8 +1090,8 @@ public class BitTorrentController {
 			return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
 				.body(new ByteArrayResource(("Failed to create torrent: " + e.getMessage()).getBytes()));
 		} finally {
-			if (tempInput != null && tempInput.exists()) {
-				tempInput.delete();
+			if (tempDir != null) {
+				deleteRecursively(tempDir);
 			}
 			if (tempOutput != null && tempOutput.exists()) {
 				tempOutput.delete();
@@ -774,6 +1099,16 @@ public class BitTorrentController {
 		}
 	}
 
+	private void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		file.delete();
+	}
+
 	private String deriveBaseName(String original) {
 		if (original == null || original.isBlank()) {
 			return "new-torrent";
@@ -6,6 +6,8 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -19,21 +21,32 @@ import java.util.Map;
 import java.util.Set;
 import java.util.function.Predicate;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.LinkedBlockingDeque;
-import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.File;
 import java.io.FileNotFoundException;
 
 import bittorrent.BitTorrentApplication;
 import bittorrent.Main;
 import bittorrent.magnet.Magnet;
+import bittorrent.peer.download.BlockBufferPool;
+import bittorrent.peer.download.DownloadSettings;
+import bittorrent.peer.download.PeerDownloadSession;
+import bittorrent.peer.download.PieceAvailability;
 import bittorrent.peer.protocol.Message;
 import bittorrent.peer.protocol.MetadataMessage;
 import bittorrent.peer.protocol.PexMessage;
 import bittorrent.peer.serial.MessageDescriptor;
 import bittorrent.peer.serial.MessageDescriptors;
 import bittorrent.peer.serial.MessageSerialContext;
+import bittorrent.storage.DiskIo;
+import bittorrent.storage.PieceCache;
+import bittorrent.storage.Storage;
+import bittorrent.storage.StorageManager;
 import bittorrent.torrent.TorrentInfo;
+import bittorrent.torrent.VerifiedPieces;
 import bittorrent.tracker.Announceable;
 import bittorrent.util.DigestUtils;
 import bittorrent.util.ExposedByteArrayOutputStream;
@@ -56,7 +69,16 @@ public class Peer implements AutoCloseable {
 	private final boolean supportExtensions;
 
 	private boolean bitfield;
-	private boolean interested;
+
+	// Download-side state: whether we want pieces from the peer, and whether
+	// the peer lets us request them
+	private volatile boolean interested;
+	private volatile boolean peerChoking = true;
+	private volatile int chokeCount;
+	private final Object stateLock = new Object();
+
+	// What we are downloading; null while any missing piece is wanted
+	private volatile PeerDownloadSession.PieceSource pieceSource;
 	private @Getter int metadataExtensionId = -1;
 	private @Getter int pexExtensionId = -1;
 
@@ -69,13 +91,29 @@ public class Peer implements AutoCloseable {
 	private final TorrentInfo torrentInfo;
 	private final File downloadedFile;
 	private final Thread readerThread;
-	private final BlockingQueue<Message.Piece> pieceQueue = new LinkedBlockingDeque<>();
+	private final BlockingQueue<Block> pieceQueue = new LinkedBlockingDeque<>();
+	private final Object sendLock = new Object();
+
+	// Requests of the peer, served in order by the upload thread; requests
+	// beyond MAX_QUEUED_UPLOAD_BYTES are dropped
+	private static final int MAX_QUEUED_UPLOAD_BYTES = 4 * 1024 * 1024;
+	private final BlockingQueue<Message.Request> uploads = new LinkedBlockingDeque<>();
+	private final AtomicInteger queuedUploadBytes = new AtomicInteger();
+	private final Thread uploadThread;
+
+	// Piece last read ahead into the PieceCache for this peer
+	private volatile int readAheadPiece = -1;
 
 	private volatile boolean peerInterested = false;
 	private volatile boolean amChoking = true;
 
-	// Client-side bitfield to track which pieces we have downloaded and verified
-	private final BitSet clientBitfield;
+	// Pieces we have downloaded and verified, shared by all connections for the torrent
+	private final VerifiedPieces verifiedPieces;
+
+	// Pieces the remote peer has announced through BITFIELD and HAVE
+	private final BitSet remotePieces;
+	private final PieceAvailability availability;
+	private boolean availabilityReleased = false;
 
 	// PEX-related fields
 	private final InetSocketAddress remoteAddress;
@@ -97,7 +135,9 @@ public class Peer implements AutoCloseable {
 		this.receiveQueue = new LinkedList<>();
 
 		// Initialize bitfield with the number of pieces in the torrent
-		this.clientBitfield = new BitSet(torrentInfo.pieces().size());
+		this.verifiedPieces = VerifiedPieces.forTorrent(infoHashHex, torrentInfo.pieces().size());
+		this.remotePieces = new BitSet(torrentInfo.pieces().size());
+		this.availability = PieceAvailability.forTorrent(infoHashHex, torrentInfo.pieces().size());
 
 		// Start the reader thread
 		this.readerThread = new Thread(this::runReaderLoop);
@@ -105,6 +145,12 @@ public class Peer implements AutoCloseable {
 		this.readerThread.setDaemon(true);
 		this.readerThread.start();
 
+		// Start the thread sending the blocks the peer requested
+		this.uploadThread = new Thread(this::runUploadLoop);
+		this.uploadThread.setName("PeerUpload-" + socket.getRemoteSocketAddress());
+		this.uploadThread.setDaemon(true);
+		this.uploadThread.start();
+
 		// Start PEX update thread for periodic updates
 		this.pexUpdateThread = new Thread(this::runPexUpdateLoop);
 		this.pexUpdateThread.setName("PeerPex-" + socket.getRemoteSocketAddress());
@@ -120,79 +166,25 @@ public class Peer implements AutoCloseable {
 	 * Intended for seeder-side peers that already have the full file.
 	 */
 	public void markAllPiecesPresent() {
-		clientBitfield.set(0, torrentInfo.pieces().size());
+		verifiedPieces.addAll();
 	}
 	
 	/**
-	 * Mark a specific piece as available in the bitfield.
-	 * Used when a piece becomes available during download.
+	 * Tells the peer about a piece we have just verified, and drops our
+	 * interest if it was the last one we wanted from it.
 	 */
-	public void markPieceAvailable(int pieceIndex) {
-		clientBitfield.set(pieceIndex);
+	public void announcePiece(int pieceIndex) throws IOException {
+		onLocalPieceAdded(pieceIndex);
+		send(new Message.Have(pieceIndex));
 	}
 	
 	/**
-	 * Initialize bitfield by checking which pieces are actually available in the file.
-	 * This allows serving pieces during an active download.
+	 * Makes sure the torrent's verified pieces reflect the data file, so that
+	 * pieces can be served during an active download. Only the first
+	 * connection for a torrent reads the file.
 	 */
 	public void initializeBitfieldFromFile() {
-		if (downloadedFile == null || !downloadedFile.exists()) {
-			return;
-		}
-		
-		try (RandomAccessFile raf = new RandomAccessFile(downloadedFile, "r")) {
-			long fileLength = raf.length();
-			long expectedLength = torrentInfo.length();
-			int pieceLength = torrentInfo.pieceLength();
-			int pieceCount = torrentInfo.pieces().size();
-			
-			// Check each piece to see if it's available
-			for (int pieceIndex = 0; pieceIndex < pieceCount; pieceIndex++) {
-				long pieceStart = (long) pieceIndex * pieceLength;
-				
-				// Check if piece position is within file bounds
-				if (pieceStart >= fileLength) {
-					continue; // Piece not written yet
-				}
-				
-				// Calculate actual piece size (last piece may be smaller)
-				long actualPieceSize = (pieceIndex == pieceCount - 1) 
-					? (expectedLength % pieceLength)
-					: pieceLength;
-				
-				// Check if we can read the full piece
-				if (pieceStart + actualPieceSize > fileLength) {
-					continue; // Piece not fully written yet
-				}
-				
-				// Try to read and verify the piece
-				try {
-					raf.seek(pieceStart);
-					byte[] pieceData = new byte[(int) actualPieceSize];
-					int bytesRead = raf.read(pieceData);
-					
-					if (bytesRead == actualPieceSize) {
-						// Verify piece hash
-						byte[] pieceHash = DigestUtils.sha1(pieceData);
-						byte[] expectedHash = torrentInfo.pieces().get(pieceIndex);
-						
-						if (Arrays.equals(pieceHash, expectedHash)) {
-							// Piece is valid, mark it as available
-							clientBitfield.set(pieceIndex);
-						}
-					}
-				} catch (IOException e) {
-					// Piece not available or corrupted, skip it
-					if (BitTorrentApplication.DEBUG) {
-						System.err.println("Could not verify piece " + pieceIndex + ": " + e.getMessage());
-					}
-				}
-			}
-		} catch (IOException e) {
-			if (BitTorrentApplication.DEBUG) {
-				System.err.println("Could not initialize bitfield from file: " + e.getMessage());
-			}
-		}
+		verifiedPieces.loadOnce(downloadedFile, torrentInfo);
 	}
 
 	private Message doReceive(MessageSerialContext context) throws IOException {
@@ -294,13 +286,96 @@ public class Peer implements AutoCloseable {
 
 		System.err.println("send: typeId=%-2d length=%-6d message=%s".formatted(descriptor.typeId(), length, message));
 
-		dataOutputStream.writeInt(length);
-		if (length == 0) {
+		// Several threads send on the same connection (download sessions,
+		// endgame cancels, HAVE broadcasts), so each frame is written whole
+		synchronized (sendLock) {
+			dataOutputStream.writeInt(length);
+			if (length == 0) {
+				return;
+			}
+
+			dataOutputStream.writeByte(descriptor.typeId());
+			dataOutputStream.write(byteArrayOutputStream.getBuffer(), 0, length - 1);
+		}
+	}
+
+	/**
+	 * Sends a block as a Piece message. When the socket has a channel, the
+	 * block goes from the storage to the socket with
+	 * {@link Storage#transferTo}, without being copied into a message first.
+	 */
+	public void sendPiece(int index, int begin, Storage storage, long position, int length) throws IOException {
+		final SocketChannel channel = socket.getChannel();
+		if (channel == null) {
+			send(new Message.Piece(index, begin, storage.read(position, length)));
 			return;
 		}
 
-		dataOutputStream.writeByte(descriptor.typeId());
-		dataOutputStream.write(byteArrayOutputStream.getBuffer(), 0, length - 1);
+		// Checked before the header goes out, a short block cannot be taken back
+		if (position < 0 || position + length > storage.size()) {
+			throw new EOFException("%d bytes at %d are outside of the torrent".formatted(length, position));
+		}
+
+		sendPieceFrame(channel, index, begin, length, () -> storage.transferTo(position, length, channel));
+	}
+
+	/**
+	 * Sends a block held in memory as a Piece message. When the socket has a
+	 * channel, the block is written to it as is.
+	 */
+	public void sendPiece(int index, int begin, ByteBuffer block) throws IOException {
+		final SocketChannel channel = socket.getChannel();
+		if (channel == null) {
+			final var data = new byte[block.remaining()];
+			block.get(block.position(), data);
+			send(new Message.Piece(index, begin, data));
+			return;
+		}
+
+		final var data = block.duplicate();
+		sendPieceFrame(channel, index, begin, data.remaining(), () -> {
+			while (data.hasRemaining()) {
+				channel.write(data);
+			}
+		});
+	}
+
+	private interface FrameBody {
+
+		void write() throws IOException;
+
+	}
+
+	/**
+	 * Writes the header of a Piece message followed by a block written by
+	 * {@code body}, as one frame.
+	 */
+	private void sendPieceFrame(SocketChannel channel, int index, int begin, int length, FrameBody body) throws IOException {
+		final var header = ByteBuffer.allocate(4 + 1 + 4 + 4)
+			.putInt(1 + 4 + 4 + length)
+			.put(MessageDescriptors.PIECE.typeId())
+			.putInt(index)
+			.putInt(begin)
+			.flip();
+
+		if (BitTorrentApplication.DEBUG) {
+			System.err.println("send: typeId=%-2d length=%-6d piece=%d begin=%d".formatted(
+				MessageDescriptors.PIECE.typeId(), 1 + 4 + 4 + length, index, begin));
+		}
+
+		synchronized (sendLock) {
+			while (header.hasRemaining()) {
+				channel.write(header);
+			}
+
+			try {
+				body.write();
+			} catch (IOException e) {
+				// The frame is cut short, so the stream cannot be used any more
+				socket.close();
+				throw e;
+			}
+		}
 	}
 
 	public void awaitBitfield() throws IOException, InterruptedException {
@@ -432,107 +507,100 @@ public class Peer implements AutoCloseable {
 	 */
 	public void sendOurBitfield() throws IOException {
 		// Only send bitfield if we have at least one piece
-		if (clientBitfield.isEmpty()) {
+		if (verifiedPieces.count() == 0) {
 			return;
 		}
 
-		// Convert BitSet to byte array for the wire protocol
-		// BitTorrent bitfield: each bit represents a piece (1 = have, 0 = don't have)
-		int numPieces = torrentInfo.pieces().size();
-		int numBytes = (numPieces + 7) / 8; // Round up to nearest byte
-		byte[] bitfieldBytes = new byte[numBytes];
-
-		for (int i = 0; i < numPieces; i++) {
-			if (clientBitfield.get(i)) {
-				int byteIndex = i / 8;
-				int bitIndex = 7 - (i % 8); // MSB first
-				bitfieldBytes[byteIndex] |= (1 << bitIndex);
-			}
-		}
-
-		send(new Message.Bitfield(bitfieldBytes));
+		send(new Message.Bitfield(verifiedPieces.toBitfield()));
 	}
 
 	public byte[] downloadPiece(TorrentInfo torrentInfo, int pieceIndex) throws IOException, InterruptedException {
-		awaitBitfield();
-		sendInterested();
-
-		final var fileLength = torrentInfo.length();
-		final var pieceLength = torrentInfo.pieceLength();
-
-		var realPieceLength = pieceLength;
-		if (torrentInfo.pieces().size() - 1 == pieceIndex) {
-			realPieceLength = (int) (fileLength % pieceLength);
+		final var result = new byte[1][];
+
+		new PeerDownloadSession(this, torrentInfo, DownloadSettings.DEFAULT)
+			.download(PeerDownloadSession.PieceSource.of(pieceIndex), (index, data, release) -> {
+				result[0] = new byte[data.remaining()];
+				data.get(result[0]);
+				release.run();
+				return CompletableFuture.completedFuture(null);
+			});
+
+		if (result[0] == null) {
+			throw new IOException("piece %d did not match its hash".formatted(pieceIndex));
 		}
+		return result[0];
+	}
 
-		final var pieceHash = torrentInfo.pieces().get(pieceIndex);
-
-		final var bytes = new byte[realPieceLength];
-
-		final var blockSize = (int) Math.pow(2, 14);
-		var blockCount = 0;
-
-		var blockStart = 0;
-		for (; blockStart < realPieceLength - blockSize; blockStart += blockSize) {
-			++blockCount;
+	/**
+	 * Returns a snapshot of the pieces the remote peer has announced.
+	 */
+	public BitSet getRemotePieces() {
+		synchronized (remotePieces) {
+			return (BitSet) remotePieces.clone();
+		}
+	}
 
-			send(new Message.Request(
-				pieceIndex,
-				blockStart,
-				blockSize
-			));
+	/**
+	 * Checks whether the remote peer has announced the given piece.
+	 */
+	public boolean hasPiece(int pieceIndex) {
+		synchronized (remotePieces) {
+			return remotePieces.get(pieceIndex);
 		}
+	}
 
-		final var remaining = realPieceLength - blockStart;
-		if (remaining != 0) {
-			++blockCount;
+	/**
+	 * A block of a piece received for our download. Its data may be a pooled
+	 * buffer, so the block must be {@link #release() released} once copied.
+	 */
+	public record Block(int index, int begin, ByteBuffer data) {
 
-			send(new Message.Request(
-				pieceIndex,
-				blockStart,
-				remaining
-			));
+		public int length() {
+			return data.remaining();
 		}
 
-		int bytesDownloaded = 0;
-		for (var index = 0; index < blockCount; ++index) {
-			// final var piece = waitFor(Message.Piece.class, null);
-			final var piece = pieceQueue.take(); // blocks until a piece arrives from the reader thread
+		public void release() {
+			BlockBufferPool.getInstance().release(data);
+		}
 
-			if(piece.index() != pieceIndex){
-				System.err.println("Received piece for wrong index. Discarding.");
-				index--; // decrement to re-wait for the correct piece.
-				continue;
-			}
+	}
 
-			System.arraycopy(piece.block(), 0, bytes, piece.begin(), piece.block().length);
-			bytesDownloaded += piece.block().length;
-		}
+	/**
+	 * Blocks until the reader thread delivers the next block for our download.
+	 */
+	public Block takePiece() throws InterruptedException {
+		return pieceQueue.take();
+	}
 
-		if(bytesDownloaded != realPieceLength){
-			throw new IOException("Downloaded piece length mismatch.");
-		}
+	/**
+	 * Like {@link #takePiece()}, but gives up after {@code timeoutMillis} and
+	 * returns {@code null}.
+	 */
+	public Block pollPiece(long timeoutMillis) throws InterruptedException {
+		return pieceQueue.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+	}
 
-		final var downloadedPieceHash = DigestUtils.sha1(bytes);
-		if (!Arrays.equals(pieceHash, downloadedPieceHash)) {
-			throw new IllegalStateException("piece hash does not match");
+	/**
+	 * Records a downloaded and verified piece, and announces it with a HAVE
+	 * to this peer and to every other connection for the torrent.
+	 */
+	public void onPieceVerified(int pieceIndex) throws IOException {
+		// Mark this piece as downloaded and verified for the whole torrent.
+		// Another connection may have delivered it first (endgame).
+		if (!verifiedPieces.add(pieceIndex)) {
+			return;
 		}
 
-		// Mark this piece as downloaded and verified in our bitfield
-		clientBitfield.set(pieceIndex);
-
 		// Send a HAVE message to this peer.
 		// This tells the peer you now have this piece and can upload it.
 		// Also notify all other connected peers about this new piece
-		notifyAllPeersAboutNewPiece(pieceIndex); 
-		send(new Message.Have(pieceIndex));
-
-		return bytes;
+		notifyAllPeersAboutNewPiece(pieceIndex);
+		announcePiece(pieceIndex);
 	}
 	
 	/**
 	 * Notify all connected peers (including incoming connections) about a newly available piece.
-	 * This allows serving peers to update their bitfields and serve the piece immediately.
+	 * They share our verified pieces, so serving peers can serve the piece immediately.
 	 */
 	private void notifyAllPeersAboutNewPiece(int pieceIndex) {
 		try {
@@ -543,13 +611,9 @@ public class Peer implements AutoCloseable {
 					continue;
 				}
 				
-				// Update bitfield for incoming connections (serving peers)
-				// This allows them to serve the piece immediately
-				peer.markPieceAvailable(pieceIndex);
-				
-				// Send HAVE message to notify peer about new piece
 				try {
-					peer.send(new Message.Have(pieceIndex));
+					// Send HAVE message to notify peer about new piece
+					peer.announcePiece(pieceIndex);
 				} catch (IOException e) {
 					// Peer connection might be closed, ignore
 					if (BitTorrentApplication.DEBUG) {
@@ -566,25 +630,132 @@ public class Peer implements AutoCloseable {
 	}
 
 	public byte[] downloadFile(TorrentInfo torrentInfo) throws IOException, InterruptedException {
-		final var fileBytes = new ExposedByteArrayOutputStream((int) torrentInfo.length());
-		for (var i = 0; i < torrentInfo.pieces().size(); ++i) {
-			final var pieceBytes = downloadPiece(torrentInfo, i);
-			fileBytes.write(pieceBytes);
+		final var fileBytes = new byte[(int) torrentInfo.length()];
+		final var pieceIndices = java.util.stream.IntStream.range(0, torrentInfo.pieces().size()).toArray();
+		final var delivered = new BitSet(pieceIndices.length);
+
+		new PeerDownloadSession(this, torrentInfo, DownloadSettings.DEFAULT)
+			.download(
+				PeerDownloadSession.PieceSource.of(pieceIndices),
+				(index, data, release) -> {
+					data.get(data.position(), fileBytes, index * torrentInfo.pieceLength(), data.remaining());
+					release.run();
+					synchronized (delivered) {
+						delivered.set(index);
+					}
+					return CompletableFuture.completedFuture(null);
+				}
+			);
+
+		final var missing = delivered.nextClearBit(0);
+		if (missing < pieceIndices.length) {
+			throw new IOException("piece %d did not match its hash".formatted(missing));
 		}
-		return fileBytes.getBuffer();
+		return fileBytes;
 	}
 
-	public void sendInterested() throws IOException, InterruptedException {
-		if (interested) {
-			return;
+	/**
+	 * Sets what we are downloading from the peer. Only pieces the source
+	 * still wants make the peer interesting.
+	 */
+	public void setPieceSource(PeerDownloadSession.PieceSource pieceSource) {
+		this.pieceSource = pieceSource;
+	}
+
+	/**
+	 * Sends INTERESTED or NOT_INTERESTED if the peer has (or no longer has)
+	 * pieces that we are missing and want.
+	 */
+	public void updateInterest() throws IOException {
+		final BitSet wantedPieces;
+		synchronized (remotePieces) {
+			wantedPieces = (BitSet) remotePieces.clone();
 		}
+		verifiedPieces.removeFrom(wantedPieces);
 
-		send(new Message.Interested());
-		this.interested = true;
+		final var source = pieceSource;
+		if (source != null) {
+			source.retainWanted(wantedPieces);
+		}
+
+		setInterested(!wantedPieces.isEmpty());
+	}
 
-		// old logic of blocked until unchoked is removed. 
-		// a more advanced client would wait for an unchoke message.
-		// (received by the reader loop) before sending 'Request' messages.
+	public boolean isInterested() {
+		return interested;
+	}
+
+	/**
+	 * Whether the peer is choking us. Requests must only be sent while it is
+	 * not.
+	 */
+	public boolean isChoking() {
+		return peerChoking;
+	}
+
+	/**
+	 * Number of CHOKE messages received so far. The peer discards our pending
+	 * requests whenever it chokes us, so a change means they must be sent
+	 * again after the next UNCHOKE.
+	 */
+	public int getChokeCount() {
+		return chokeCount;
+	}
+
+	/**
+	 * Waits until the peer unchokes us or the timeout elapses.
+	 *
+	 * @return {@code true} if the peer is no longer choking us
+	 */
+	public boolean awaitUnchoke(long timeoutMillis) throws InterruptedException {
+		synchronized (stateLock) {
+			if (peerChoking && !isClosed()) {
+				stateLock.wait(timeoutMillis);
+			}
+			return !peerChoking;
+		}
+	}
+
+	private void setInterested(boolean wanted) throws IOException {
+		synchronized (stateLock) {
+			if (interested == wanted) {
+				return;
+			}
+
+			send(wanted ? new Message.Interested() : new Message.NotInterested());
+			interested = wanted;
+		}
+	}
+
+	private boolean isWanted(int pieceIndex) {
+		final var source = pieceSource;
+		if (source == null) {
+			return true;
+		}
+
+		final var pieces = new BitSet();
+		pieces.set(pieceIndex);
+		source.retainWanted(pieces);
+		return !pieces.isEmpty();
+	}
+
+	/**
+	 * A piece we now have may have been the last one the peer could give us.
+	 */
+	private void onLocalPieceAdded(int pieceIndex) throws IOException {
+		if (interested && hasPiece(pieceIndex)) {
+			updateInterest();
+		}
+	}
+
+	private void onChokeChanged(boolean choking) {
+		synchronized (stateLock) {
+			if (choking) {
+				++chokeCount;
+			}
+			peerChoking = choking;
+			stateLock.notifyAll();
+		}
 	}
 
 	/**
@@ -703,12 +874,15 @@ public class Peer implements AutoCloseable {
 		
 		// Unregister from SwarmManager
 		SwarmManager.getInstance().unregisterActivePeer(infoHashHex, remoteAddress);
+
+		releaseAvailability();
 		
 		// Note: We keep upload stats even after peer disconnects for historical tracking
 		// Stats are only cleared when seeding stops (via SeedingStatsService.clearTorrentStats)
 		
 		// Stop threads
 		readerThread.interrupt();
+		uploadThread.interrupt();
 		pexUpdateThread.interrupt();
 		
 		// Close socket
@@ -716,13 +890,15 @@ public class Peer implements AutoCloseable {
 		
 		// Wait for threads to die
 		readerThread.join(2000);
+		uploadThread.join(2000);
 		pexUpdateThread.join(2000);
 	}
 
 	public static Peer connect(InetSocketAddress address, Announceable announceable, TorrentInfo torrentInfo, File file, String peerId) throws IOException {
 		System.err.println("peer: trying to connect: %s".formatted(address));
 
-		final var socket = new Socket(address.getAddress(), address.getPort());
+		// Opened through a channel so that uploads can use transferTo
+		final var socket = SocketChannel.open(address).socket();
 		return connect(socket, announceable, torrentInfo, file, peerId);
 	}
 
@@ -823,6 +999,30 @@ public class Peer implements AutoCloseable {
 		return data.torrentInfo();
 	}
 
+	/**
+	 * Reads the rest of a Piece message, reading the block from the socket
+	 * channel into a pooled direct buffer.
+	 */
+	private void receiveBlock(DataInputStream input, int blockLength) throws IOException {
+		final var index = input.readInt();
+		final var begin = input.readInt();
+
+		// Nothing is buffered in the stream, so the channel continues where it stopped
+		final var data = BlockBufferPool.getInstance().acquire(blockLength);
+		while (data.hasRemaining()) {
+			if (socket.getChannel().read(data) < 0) {
+				throw new EOFException("connection closed in the middle of a block");
+			}
+		}
+		data.flip();
+
+		if (BitTorrentApplication.DEBUG) {
+			System.err.println("RECV_LOOP: Piece[index=%d, begin=%d, length=%d] (pooled)".formatted(index, begin, blockLength));
+		}
+
+		pieceQueue.add(new Block(index, begin, data));
+	}
+
 	private void runReaderLoop() {
 		try {
 			final var dataInputStream = new DataInputStream(socket.getInputStream());
@@ -855,6 +1055,13 @@ public class Peer implements AutoCloseable {
 					continue;
 				}
 
+				// Blocks go from the socket into a pooled buffer, not into a new array
+				if (descriptor.typeId() == MessageDescriptors.PIECE.typeId() && socket.getChannel() != null
+						&& BlockBufferPool.getInstance().accepts(length - 1 - 8)) {
+					receiveBlock(dataInputStream, length - 1 - 8);
+					continue;
+				}
+
 				MessageSerialContext context = null;
 				if (descriptor.typeId() == MessageDescriptors.EXTENSION.typeId()) {
 					context = extensionContext;
@@ -899,6 +1106,7 @@ public class Peer implements AutoCloseable {
 				closeQuietly();
 			}
 		} finally {
+			releaseAvailability();
 			closeQuietly();
 		}
 	}
@@ -906,7 +1114,7 @@ public class Peer implements AutoCloseable {
 	private void handleMessage(Message message) throws IOException {
 		if (message instanceof Message.Piece piece) {
 			// This is for our download. Add it to the queue.
-			pieceQueue.add(piece);
+			pieceQueue.add(new Block(piece.index(), piece.begin(), ByteBuffer.wrap(piece.block())));
 		} else if (message instanceof Message.Interested) {
 			// The peer is interested in us.
 			this.peerInterested = true;
@@ -918,11 +1126,22 @@ public class Peer implements AutoCloseable {
 		} else if (message instanceof Message.NotInterested) {
 			// The peer is not interested.
 			this.peerInterested = false;
+		} else if (message instanceof Message.Choke) {
+			// The peer stopped serving us and dropped our pending requests.
+			onChokeChanged(true);
+		} else if (message instanceof Message.Unchoke) {
+			// The peer lets us request blocks.
+			onChokeChanged(false);
 		} else if (message instanceof Message.Request request) {
 			// The peer is requesting a block. This is our upload logic.
 			handlePieceRequest(request);
-		} else if (message instanceof Message.Bitfield) {
+		} else if (message instanceof Message.Have have) {
+			// The peer has completed a new piece.
+			onRemotePieceAnnounced(have.pieceIndex());
+		} else if (message instanceof Message.Bitfield bitfieldMessage) {
 			// This is for our download. Store it.
+			onRemoteBitfield(bitfieldMessage.values());
+			updateInterest();
 			this.bitfield = true;
 			// Only add to queue if awaitBitfield() hasn't completed yet
 			// (it will check the bitfield flag first)
@@ -1026,7 +1245,64 @@ public class Peer implements AutoCloseable {
 				}
 			}
 		}
-		// You can add handlers for Choke, Unchoke, Have, Cancel here
+		// You can add a handler for Cancel here
+	}
+
+	private void onRemoteBitfield(byte[] values) {
+		final int pieceCount = torrentInfo.pieces().size();
+		final BitSet announced = new BitSet(pieceCount);
+
+		// BitTorrent bitfield: MSB of the first byte is piece 0
+		for (int pieceIndex = 0; pieceIndex < pieceCount && pieceIndex / 8 < values.length; pieceIndex++) {
+			if ((values[pieceIndex / 8] & (0x80 >>> (pieceIndex % 8))) != 0) {
+				announced.set(pieceIndex);
+			}
+		}
+
+		synchronized (remotePieces) {
+			if (availabilityReleased) {
+				return;
+			}
+			announced.andNot(remotePieces);
+			remotePieces.or(announced);
+			availability.addPieces(announced);
+		}
+	}
+
+	private void onRemotePieceAnnounced(int pieceIndex) throws IOException {
+		if (pieceIndex < 0 || pieceIndex >= torrentInfo.pieces().size()) {
+			if (BitTorrentApplication.DEBUG) {
+				System.err.printf("Peer[%s]: HAVE for invalid piece %d. Ignoring.%n", remoteAddress, pieceIndex);
+			}
+			return;
+		}
+
+		synchronized (remotePieces) {
+			if (availabilityReleased || remotePieces.get(pieceIndex)) {
+				return;
+			}
+			remotePieces.set(pieceIndex);
+			availability.addPiece(pieceIndex);
+		}
+
+		// Only a piece we lack and want can make the peer interesting
+		if (!interested && !verifiedPieces.contains(pieceIndex) && isWanted(pieceIndex)) {
+			setInterested(true);
+		}
+	}
+
+	/**
+	 * Removes this connection's pieces from the torrent's availability
+	 * histogram once the connection goes away.
+	 */
+	private void releaseAvailability() {
+		synchronized (remotePieces) {
+			if (availabilityReleased) {
+				return;
+			}
+			availabilityReleased = true;
+			availability.removePieces(remotePieces);
+		}
 	}
 
 	private void handlePieceRequest(Message.Request request) throws IOException {
@@ -1044,55 +1320,127 @@ public class Peer implements AutoCloseable {
 		}
 		
 		// Check if we actually have this piece before attempting to upload
-		if (!clientBitfield.get(request.index())) {
+		if (!verifiedPieces.contains(request.index())) {
 			if (BitTorrentApplication.DEBUG) {
 				System.err.println("Got request for piece %d that we don't have. Ignoring.".formatted(request.index()));
 			}
 			return;
 		}
 		
-		try (RandomAccessFile raf = new RandomAccessFile(this.downloadedFile, "r")) {
-			long pieceStart = (long)request.index() * this.torrentInfo.pieceLength();
-			long blockStart = pieceStart + request.begin();
-			
-			if (request.length() > 16384) { // 2^14 bytes
-					System.err.println("Request length too large. Ignoring.");
-					return;
+		if (request.length() > 16384) { // 2^14 bytes
+			System.err.println("Request length too large. Ignoring.");
+			return;
+		}
+		
+		// Served by the upload thread, so that neither a slow disk nor a slow
+		// peer holds up this connection's reader
+		if (queuedUploadBytes.addAndGet(request.length()) > MAX_QUEUED_UPLOAD_BYTES) {
+			queuedUploadBytes.addAndGet(-request.length());
+			if (BitTorrentApplication.DEBUG) {
+				System.err.println("Too many requests queued by %s. Ignoring.".formatted(remoteAddress));
 			}
+			return;
+		}
+		uploads.add(request);
+	}
 
-			byte[] block = new byte[request.length()];
-			raf.seek(blockStart);
-			int bytesRead = raf.read(block);
+	/**
+	 * Serves the peer's requests in the order they arrived, until the
+	 * connection closes.
+	 */
+	private void runUploadLoop() {
+		try {
+			while (!closed && !socket.isClosed()) {
+				final var request = uploads.poll(1, TimeUnit.SECONDS);
+				if (request == null) {
+					continue;
+				}
 
-			if (bytesRead != request.length()) {
-				System.err.println("Could not read full block from file. Ignoring request.");
-				return;
+				try {
+					uploadBlock(request);
+				} finally {
+					queuedUploadBytes.addAndGet(-request.length());
+				}
 			}
-			
-			// Send the requested piece
-			send(new Message.Piece(request.index(), request.begin(), block));
-			
-			// Track upload statistics for seeding torrents
-			try {
-				bittorrent.service.SeedingStatsService statsService = 
-					bittorrent.service.SeedingStatsService.getInstance();
-				statsService.recordBytesUploaded(infoHashHex, remoteAddress, request.length());
-				// Note: We track piece uploads per block, but could also track complete pieces
-				// For now, tracking bytes is sufficient
-			} catch (Exception e) {
-				// Don't fail upload if stats tracking fails
-				if (BitTorrentApplication.DEBUG) {
-					System.err.println("Failed to record upload stats: " + e.getMessage());
+		} catch (InterruptedException e) {
+			// Thread interrupted, exit
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Sends a block from the {@link PieceCache} if its piece is cached, and
+	 * otherwise from the storage with {@link Storage#transferTo}. A miss reads
+	 * the piece into the cache on the disk pool, for the blocks that follow.
+	 */
+	private void uploadBlock(Message.Request request) {
+		try {
+			final long pieceStart = (long) request.index() * this.torrentInfo.pieceLength();
+			final long blockStart = pieceStart + request.begin();
+
+			try (StorageManager.Handle handle = StorageManager.getInstance()
+					.acquireForReading(infoHashHex, this.downloadedFile, this.torrentInfo)) {
+				final var cache = PieceCache.getInstance();
+				final var pieceSize = (int) Math.min(this.torrentInfo.pieceLength(), this.torrentInfo.length() - pieceStart);
+				if (request.begin() < 0 || request.begin() + request.length() > pieceSize) {
+					throw new EOFException("block outside of piece " + request.index());
+				}
+
+				final var piece = cache.isEnabled() ? cache.getIfCached(infoHashHex, request.index()) : null;
+				if (piece != null) {
+					sendPiece(request.index(), request.begin(), piece.slice(request.begin(), request.length()));
+				} else {
+					if (cache.isEnabled()) {
+						readAhead(request.index(), pieceStart, pieceSize);
+					}
+					sendPiece(request.index(), request.begin(), handle.storage(), blockStart, request.length());
 				}
 			}
-			
-		} catch (FileNotFoundException e) {
+
+			recordUpload(request);
+		} catch (EOFException e) {
+			System.err.println("Could not read full block from file. Ignoring request.");
+		} catch (FileNotFoundException | java.nio.file.NoSuchFileException e) {
 			// This will happen if we don't have the file/piece yet.
 			if (BitTorrentApplication.DEBUG) {
 				System.err.println("Cannot read from file to upload, file not found or piece not downloaded.");
 			}
 		} catch (IOException e) {
-			System.err.println("Error reading from file for upload: " + e.getMessage());
+			System.err.println("Error sending block to " + remoteAddress + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads a piece into the {@link PieceCache} on the disk pool, unless the
+	 * read queue is full. Each piece is read ahead once per peer.
+	 */
+	private void readAhead(int pieceIndex, long pieceStart, int pieceSize) throws IOException {
+		if (readAheadPiece == pieceIndex || !DiskIo.getInstance().hasReadCapacity()) {
+			return;
+		}
+		readAheadPiece = pieceIndex;
+
+		DiskIo.getInstance().read(pieceSize, () -> {
+			try (StorageManager.Handle handle = StorageManager.getInstance()
+					.acquireForReading(infoHashHex, this.downloadedFile, this.torrentInfo)) {
+				return PieceCache.getInstance().get(infoHashHex, pieceIndex, handle.storage(), pieceStart, pieceSize);
+			}
+		});
+	}
+
+	private void recordUpload(Message.Request request) {
+		// Track upload statistics for seeding torrents
+		try {
+			bittorrent.service.SeedingStatsService statsService = 
+				bittorrent.service.SeedingStatsService.getInstance();
+			statsService.recordBytesUploaded(infoHashHex, remoteAddress, request.length());
+			// Note: We track piece uploads per block, but could also track complete pieces
+			// For now, tracking bytes is sufficient
+		} catch (Exception e) {
+			// Don't fail upload if stats tracking fails
+			if (BitTorrentApplication.DEBUG) {
+				System.err.println("Failed to record upload stats: " + e.getMessage());
+			}
 		}
 	}
 
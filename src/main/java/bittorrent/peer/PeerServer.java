@@ -4,8 +4,10 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -26,7 +28,10 @@ import bittorrent.BitTorrentApplication;
 import bittorrent.service.storage.TorrentPersistenceService;
 import bittorrent.Main;
 import bittorrent.config.BitTorrentConfig;
+import bittorrent.peer.download.PieceAvailability;
+import bittorrent.storage.StorageManager;
 import bittorrent.torrent.TorrentInfo;
+import bittorrent.torrent.VerifiedPieces;
 
 @Component
 public class PeerServer {
@@ -58,8 +63,10 @@ public class PeerServer {
         
         try {
             // Bind to IPv4 only (0.0.0.0) to avoid IPv6 issues
-            serverSocket = new ServerSocket(config.getListenPort(), 50, 
-                java.net.InetAddress.getByAddress(new byte[]{0, 0, 0, 0}));
+            // Opened through a channel so that accepted sockets can upload with transferTo
+            serverSocket = ServerSocketChannel.open().socket();
+            serverSocket.bind(new InetSocketAddress(
+                java.net.InetAddress.getByAddress(new byte[]{0, 0, 0, 0}), config.getListenPort()), 50);
             running = true;
             System.out.println("PeerServer listening on port " + config.getListenPort() + " (IPv4 only)");
             
@@ -75,7 +82,13 @@ public class PeerServer {
     public void registerTorrent(TorrentInfo torrentInfo, File file) {
         String infoHashHex = Main.HEX_FORMAT.formatHex(torrentInfo.hash()).toLowerCase();
         activeTorrents.put(infoHashHex, torrentInfo);
-        torrentFiles.put(infoHashHex, file);
+        File previousFile = torrentFiles.put(infoHashHex, file);
+        
+        // Verified pieces describe the data file; start over if it changed
+        if (previousFile == null || !previousFile.equals(file)) {
+            VerifiedPieces.forTorrent(infoHashHex, torrentInfo.pieces().size()).reset();
+            StorageManager.getInstance().close(infoHashHex);
+        }
         System.out.println("Registered torrent for seeding: " + infoHashHex);
         
         // Save state
@@ -143,7 +156,14 @@ public class PeerServer {
                 
                 activeTorrents.put(state.infoHashHex, torrentInfo);
                 torrentFiles.put(state.infoHashHex, dataFile);
-                
+
+                // Unchanged since its resume record was saved: no need to hash it again
+                java.util.BitSet saved = persistenceService.loadResumeState(
+                    state.infoHashHex, dataFile, torrentInfo);
+                if (saved != null) {
+                    VerifiedPieces.forTorrent(state.infoHashHex, torrentInfo.pieces().size()).loadFrom(saved);
+                }
+
                 System.out.println("Resumed seeding torrent: " + state.infoHashHex + 
                     " (" + state.fileName + ")");
                 
@@ -183,6 +203,13 @@ public class PeerServer {
         return new HashSet<>(activeTorrents.keySet());
     }
     
+    /**
+     * Get torrent info for a registered torrent
+     */
+    public TorrentInfo getTorrentInfo(String infoHashHex) {
+        return activeTorrents.get(infoHashHex);
+    }
+
     /**
      * Get file for a torrent
      */
@@ -233,6 +260,9 @@ public class PeerServer {
         TorrentInfo removedInfo = activeTorrents.remove(normalized);
         File removedFile = torrentFiles.remove(normalized);
         if (removedInfo != null || removedFile != null) {
+            StorageManager.getInstance().remove(normalized);
+            VerifiedPieces.remove(normalized);
+            PieceAvailability.remove(normalized);
             System.out.println("Unregistered torrent: " + normalized);
             saveSeedingTorrents();
             return true;
@@ -314,8 +344,8 @@ public class PeerServer {
             SwarmManager.getInstance().registerActivePeer(infoHashHex, 
                 (java.net.InetSocketAddress) socket.getRemoteSocketAddress());
             
-            // Initialize bitfield from file (checks which pieces are actually available)
-            // This works for both complete files (seeding) and incomplete files (downloading)
+            // Verified pieces are shared per torrent: only the first connection
+            // hashes the file, later ones just send the bitfield
             peer.initializeBitfieldFromFile();
             peer.sendOurBitfield();
             
@@ -0,0 +1,81 @@
+package bittorrent.peer.download;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Direct buffers that incoming blocks are read into from the socket. Buffers
+ * are handed back once the block has been copied into its piece, so that
+ * receiving does not allocate anything per block.
+ */
+public class BlockBufferPool {
+
+	private static final BlockBufferPool INSTANCE = new BlockBufferPool();
+
+	public static BlockBufferPool getInstance() {
+		return INSTANCE;
+	}
+
+	private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger freeCount = new AtomicInteger();
+
+	private volatile int bufferSize = 16 * 1024;
+	private volatile int maxRetained = 1024;
+
+	private BlockBufferPool() {
+	}
+
+	/**
+	 * @param bufferSize largest block the buffers hold
+	 * @param maxRetained buffers kept for reuse, or 0 to receive blocks into
+	 *        heap arrays instead
+	 */
+	public synchronized void configure(int bufferSize, int maxRetained) {
+		this.bufferSize = bufferSize;
+		this.maxRetained = maxRetained;
+
+		free.clear();
+		freeCount.set(0);
+	}
+
+	/**
+	 * Whether a block of {@code length} bytes should be received into a
+	 * buffer of this pool.
+	 */
+	public boolean accepts(int length) {
+		return maxRetained > 0 && length >= 0 && length <= bufferSize;
+	}
+
+	/**
+	 * A buffer with exactly {@code length} bytes remaining.
+	 */
+	public ByteBuffer acquire(int length) {
+		var buffer = free.poll();
+		if (buffer != null) {
+			freeCount.decrementAndGet();
+		}
+		if (buffer == null || buffer.capacity() != bufferSize) {
+			buffer = ByteBuffer.allocateDirect(bufferSize);
+		}
+
+		return buffer.clear().limit(length);
+	}
+
+	/**
+	 * Hands a buffer back for reuse. Buffers that did not come from the pool
+	 * are ignored.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (!buffer.isDirect() || buffer.capacity() != bufferSize) {
+			return;
+		}
+
+		if (freeCount.incrementAndGet() <= maxRetained) {
+			free.add(buffer);
+		} else {
+			freeCount.decrementAndGet();
+		}
+	}
+
+}
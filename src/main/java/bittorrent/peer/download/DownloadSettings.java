@@ -0,0 +1,37 @@
+package bittorrent.peer.download;
+
+/**
+ * Tuning of a {@link PeerDownloadSession}.
+ *
+ * @param blockSize                  size of a block request in bytes
+ * @param initialOutstandingRequests requests in flight before anything has
+ *                                   been measured
+ * @param minOutstandingRequests     lower bound of the request window
+ * @param maxOutstandingRequests     upper bound of the request window
+ * @param requestTimeoutMillis       time after which an unanswered request is
+ *                                   cancelled and sent again
+ * @param snubTimeoutMillis          time without any block after which the
+ *                                   peer is considered to have snubbed us
+ */
+public record DownloadSettings(
+	int blockSize,
+	int initialOutstandingRequests,
+	int minOutstandingRequests,
+	int maxOutstandingRequests,
+	long requestTimeoutMillis,
+	long snubTimeoutMillis
+) {
+
+	public static final DownloadSettings DEFAULT = new DownloadSettings(16 * 1024, 16, 2, 128, 30_000, 10_000);
+
+	public DownloadSettings {
+		if (blockSize <= 0) {
+			throw new IllegalArgumentException("blockSize must be positive");
+		}
+
+		minOutstandingRequests = Math.max(1, minOutstandingRequests);
+		maxOutstandingRequests = Math.max(minOutstandingRequests, maxOutstandingRequests);
+		initialOutstandingRequests = Math.clamp(initialOutstandingRequests, minOutstandingRequests, maxOutstandingRequests);
+	}
+
+}
@@ -0,0 +1,675 @@
+package bittorrent.peer.download;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+import bittorrent.BitTorrentApplication;
+import bittorrent.peer.Peer;
+import bittorrent.peer.protocol.Message;
+import bittorrent.storage.DiskIo;
+import bittorrent.torrent.TorrentInfo;
+
+/**
+ * Downloads pieces from a single peer while keeping a window of block
+ * requests in flight. Requests for the next piece are sent before the current
+ * one has finished, so the connection never idles between pieces. The window
+ * follows the peer's measured bandwidth-delay product, so fast peers are kept
+ * busy without tying up blocks on slow ones.
+ * <p>
+ * Requests are only sent while the peer is not choking us. Requests that
+ * were in flight when the peer choked us are sent again after it unchokes.
+ * A piece with a request that goes unanswered for too long is cancelled and
+ * handed back, so that another peer can finish it; it is not asked from this
+ * peer again until the peer sends a block. A peer that sends nothing at all
+ * for a while loses all of its pieces to the others.
+ * <p>
+ * Pieces are hashed block by block as they arrive, and complete pieces are
+ * checked and delivered on the {@link PieceVerifier} pool while the session
+ * goes on receiving. A piece that fails its hash is handed back to be
+ * downloaded again; a peer that keeps sending bad pieces is given up on.
+ */
+public class PeerDownloadSession {
+
+	private static final long RECEIVE_POLL_MILLIS = 500;
+
+	// Pieces failing their hash before the peer is given up on
+	private static final int MAX_HASH_FAILURES = 3;
+
+	private final Peer peer;
+	private final TorrentInfo torrentInfo;
+	private final DownloadSettings settings;
+	private final long requestTimeoutNanos;
+	private final long snubTimeoutNanos;
+
+	// Sized to the peer's bandwidth-delay product as measurements come in
+	private final TransferRateEstimator estimator = new TransferRateEstimator();
+	private int requestWindow;
+
+	// Requests that have been planned but not yet sent
+	private final Deque<Message.Request> pendingRequests = new ArrayDeque<>();
+
+	// Requests that have been sent and not yet answered, with the time they
+	// were sent, oldest first
+	private final Map<Message.Request, Long> outstandingRequests = new LinkedHashMap<>();
+
+	// Requests cancelled from other threads, for the download loop to send
+	// the CANCELs of
+	private final List<Message.Request> cancelledRequests = new ArrayList<>();
+
+	// Last time the peer gave us something (a block, or an unchoke)
+	private long lastProgressNanos = System.nanoTime();
+
+	// Pieces given up on after a request timed out, and when the last one
+	// was; not taken from the source again until the peer recovers
+	private final BitSet timedOutPieces = new BitSet();
+	private long timedOutNanos;
+
+	// Completed pieces still being hashed, and the first thing that went
+	// wrong with one of them
+	private int verifyingPieces;
+	private IOException verificationFailure;
+	private int hashFailures;
+
+	// Pieces with at least one block planned, in the order they were started
+	private final Map<Integer, PieceBuffer> inProgress = new LinkedHashMap<>();
+
+	public PeerDownloadSession(Peer peer, TorrentInfo torrentInfo, DownloadSettings settings) {
+		this.peer = peer;
+		this.torrentInfo = torrentInfo;
+		this.settings = settings;
+		this.requestTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(settings.requestTimeoutMillis());
+		this.snubTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(settings.snubTimeoutMillis());
+		this.requestWindow = settings.initialOutstandingRequests();
+	}
+
+	/**
+	 * Downloads pieces handed out by {@code source} until it is exhausted and
+	 * every started piece has been delivered to {@code listener} or cancelled.
+	 */
+	public void download(PieceSource source, PieceListener listener) throws IOException, InterruptedException {
+		peer.awaitBitfield();
+		peer.setPieceSource(source);
+		peer.updateInterest();
+
+		var sourceExhausted = false;
+		var seenChokes = peer.getChokeCount();
+		while (true) {
+			throwIfVerificationFailed();
+			sendCancelledRequests();
+
+			if (peer.isClosed()) {
+				throw new IOException("connection to %s closed".formatted(peer.getRemoteAddress()));
+			}
+
+			// A choke drops everything we asked for; ask again once unchoked
+			final var chokes = peer.getChokeCount();
+			if (chokes != seenChokes) {
+				seenChokes = chokes;
+				requeueOutstandingRequests();
+			}
+
+			if (peer.isChoking()) {
+				synchronized (this) {
+					if (inProgress.isEmpty() && !peer.isInterested()) {
+						break;
+					}
+				}
+
+				// Don't sit on pieces that other peers could be downloading
+				if (isStalled()) {
+					releaseAll(source);
+				}
+
+				if (peer.awaitUnchoke(RECEIVE_POLL_MILLIS)) {
+					markProgress();
+				}
+				continue;
+			}
+
+			// Keep the pipe full, pulling new pieces from the source as needed.
+			// The source is never called while holding our lock: it may call
+			// back into other sessions to cancel duplicate requests.
+			// Nothing new is requested while the disk cannot keep up; blocks
+			// already in flight are still received.
+			final var diskReady = DiskIo.getInstance().hasWriteCapacity();
+			while (true) {
+				final Message.Request request;
+				synchronized (this) {
+					if (outstandingRequests.size() >= requestWindow || !diskReady) {
+						break;
+					}
+
+					request = pendingRequests.pollFirst();
+					if (request != null) {
+						outstandingRequests.put(request, System.nanoTime());
+					}
+				}
+
+				if (request != null) {
+					peer.send(request);
+					continue;
+				}
+
+				if (sourceExhausted) {
+					break;
+				}
+
+				final var pieceIndex = source.nextPiece(this);
+				if (pieceIndex < 0) {
+					sourceExhausted = true;
+					break;
+				}
+
+				planPiece(pieceIndex, source.takePartialPiece(pieceIndex));
+			}
+
+			final boolean idle;
+			synchronized (this) {
+				idle = outstandingRequests.isEmpty();
+			}
+			if (idle) {
+				if (diskReady) {
+					break;
+				}
+				DiskIo.getInstance().awaitWriteCapacity(RECEIVE_POLL_MILLIS);
+				continue;
+			}
+
+			checkTimeouts(source);
+
+			// Wake up regularly so that cancelled and timed out requests free
+			// up the pipe
+			final var block = peer.pollPiece(RECEIVE_POLL_MILLIS);
+			if (block == null) {
+				continue;
+			}
+
+			final PieceBuffer completed;
+			try {
+				synchronized (this) {
+					final var request = new Message.Request(block.index(), block.begin(), block.length());
+					final var buffer = inProgress.get(block.index());
+
+					final var sentNanos = outstandingRequests.remove(request);
+					if (sentNanos == null || buffer == null) {
+						if (BitTorrentApplication.DEBUG) {
+							System.err.println("Received unrequested or cancelled block %s. Discarding.".formatted(request));
+						}
+						continue;
+					}
+
+					lastProgressNanos = System.nanoTime();
+					timedOutPieces.clear();
+					updateRequestWindow(sentNanos, lastProgressNanos, block.length());
+					buffer.write(block.begin(), block.data());
+					completed = buffer.isComplete() ? inProgress.remove(block.index()) : null;
+				}
+			} finally {
+				block.release();
+			}
+
+			if (completed != null) {
+				completePiece(completed, source, listener);
+			}
+		}
+
+		awaitVerifications();
+		sendCancelledRequests();
+	}
+
+	/**
+	 * Drops a piece that another session has already delivered. Safe to call
+	 * from any thread: the CANCEL for every block of it that is still in
+	 * flight is sent by the download loop, so that the caller never blocks on
+	 * this peer's socket.
+	 */
+	public synchronized void cancelPiece(int pieceIndex) {
+		final var buffer = inProgress.remove(pieceIndex);
+		if (buffer == null) {
+			return;
+		}
+		buffer.release();
+
+		pendingRequests.removeIf(request -> request.index() == pieceIndex);
+		outstandingRequests.keySet().removeIf(request -> {
+			if (request.index() != pieceIndex) {
+				return false;
+			}
+			cancelledRequests.add(request);
+			return true;
+		});
+	}
+
+	public Peer getPeer() {
+		return peer;
+	}
+
+	/**
+	 * The pieces the peer has announced.
+	 */
+	BitSet getRemotePieces() {
+		return peer.getRemotePieces();
+	}
+
+	/**
+	 * Number of block requests currently allowed in flight.
+	 */
+	public synchronized int getRequestWindow() {
+		return requestWindow;
+	}
+
+	/**
+	 * Measured download rate from this peer in bytes per second.
+	 */
+	public synchronized double getBytesPerSecond() {
+		return estimator.getBytesPerSecond();
+	}
+
+	/**
+	 * Measured round-trip time to this peer in milliseconds, or -1 if not
+	 * measured yet.
+	 */
+	public synchronized long getRttMillis() {
+		final var rttNanos = estimator.getRttNanos();
+		return rttNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(rttNanos);
+	}
+
+	/**
+	 * Pieces that were started by this session but not delivered, in the
+	 * order they were started, with the blocks received so far. Used to hand
+	 * the work to another peer, so the session gives them up.
+	 */
+	public synchronized List<PieceBuffer> getUnfinishedPieces() {
+		final var pieces = new ArrayList<>(inProgress.values());
+
+		inProgress.clear();
+		pendingRequests.clear();
+		outstandingRequests.clear();
+		return pieces;
+	}
+
+	/**
+	 * Pieces that should go to other peers, since this one timed out on them
+	 * and has not sent a block since. Forgotten after the snub timeout, in
+	 * case no other peer has them.
+	 */
+	synchronized BitSet getTimedOutPieces() {
+		if (!timedOutPieces.isEmpty() && System.nanoTime() - timedOutNanos > snubTimeoutNanos) {
+			timedOutPieces.clear();
+		}
+
+		return (BitSet) timedOutPieces.clone();
+	}
+
+	private void updateRequestWindow(long sentNanos, long receivedNanos, int length) {
+		estimator.onBlockReceived(sentNanos, receivedNanos, length);
+
+		final var window = estimator.requestWindow(
+			requestWindow,
+			settings.blockSize(),
+			settings.minOutstandingRequests(),
+			settings.maxOutstandingRequests()
+		);
+
+		if (window != requestWindow && BitTorrentApplication.DEBUG) {
+			System.err.println("Request window for %s: %d -> %d (rtt=%dms, rate=%.0fB/s)".formatted(
+				peer.getRemoteAddress(),
+				requestWindow,
+				window,
+				TimeUnit.NANOSECONDS.toMillis(estimator.getRttNanos()),
+				estimator.getBytesPerSecond()
+			));
+		}
+
+		requestWindow = window;
+	}
+
+	private synchronized void requeueOutstandingRequests() {
+		// Same order as originally sent, ahead of anything not yet sent
+		final var requests = new ArrayList<>(outstandingRequests.keySet());
+		for (var index = requests.size() - 1; index >= 0; --index) {
+			pendingRequests.addFirst(requests.get(index));
+		}
+
+		outstandingRequests.clear();
+	}
+
+	/**
+	 * Hands pieces with requests the peer has not answered in time back to the
+	 * source, and gives up on the peer entirely if it has sent nothing at all
+	 * for too long.
+	 */
+	private void checkTimeouts(PieceSource source) throws IOException {
+		if (isStalled()) {
+			releaseAll(source);
+			throw new IOException("peer %s sent no block in %d ms".formatted(
+				peer.getRemoteAddress(),
+				TimeUnit.NANOSECONDS.toMillis(snubTimeoutNanos)
+			));
+		}
+
+		final var cancelled = new ArrayList<Message.Request>();
+		final var released = new ArrayList<PieceBuffer>();
+		synchronized (this) {
+			final var now = System.nanoTime();
+
+			// Oldest first, so the first one still in time ends the scan
+			for (final var entry : outstandingRequests.entrySet()) {
+				if (now - entry.getValue() < requestTimeoutNanos) {
+					break;
+				}
+
+				final var buffer = inProgress.remove(entry.getKey().index());
+				if (buffer != null) {
+					released.add(buffer);
+				}
+			}
+
+			// Every request of those pieces goes, received blocks are kept
+			for (final var buffer : released) {
+				final var pieceIndex = buffer.getPieceIndex();
+				pendingRequests.removeIf(request -> request.index() == pieceIndex);
+				outstandingRequests.keySet().removeIf(request -> {
+					if (request.index() != pieceIndex) {
+						return false;
+					}
+					cancelled.add(request);
+					return true;
+				});
+				timedOutPieces.set(pieceIndex);
+			}
+			if (!released.isEmpty()) {
+				timedOutNanos = now;
+			}
+		}
+
+		if (released.isEmpty()) {
+			return;
+		}
+
+		if (BitTorrentApplication.DEBUG) {
+			System.err.println("Request(s) to %s timed out. Handing %d piece(s) to other peers.".formatted(peer.getRemoteAddress(), released.size()));
+		}
+
+		source.release(this, released);
+		sendCancels(cancelled);
+	}
+
+	/**
+	 * Whether we hold pieces but the peer has given us nothing for longer than
+	 * the snub timeout.
+	 */
+	private synchronized boolean isStalled() {
+		return !inProgress.isEmpty() && System.nanoTime() - lastProgressNanos > snubTimeoutNanos;
+	}
+
+	private synchronized void markProgress() {
+		lastProgressNanos = System.nanoTime();
+	}
+
+	/**
+	 * Cancels everything in flight and hands all unfinished pieces back to the
+	 * source so that other peers can take them over.
+	 */
+	private void releaseAll(PieceSource source) {
+		final List<Message.Request> cancelled;
+		final List<PieceBuffer> pieces;
+
+		synchronized (this) {
+			cancelled = new ArrayList<>(outstandingRequests.keySet());
+			pieces = new ArrayList<>(inProgress.values());
+
+			outstandingRequests.clear();
+			pendingRequests.clear();
+			inProgress.clear();
+		}
+
+		if (BitTorrentApplication.DEBUG) {
+			System.err.println("Peer %s stalled. Releasing %d piece(s).".formatted(peer.getRemoteAddress(), pieces.size()));
+		}
+
+		source.release(this, pieces);
+		sendCancels(cancelled);
+	}
+
+	private void sendCancelledRequests() {
+		final List<Message.Request> cancelled;
+		synchronized (this) {
+			if (cancelledRequests.isEmpty()) {
+				return;
+			}
+			cancelled = new ArrayList<>(cancelledRequests);
+			cancelledRequests.clear();
+		}
+
+		sendCancels(cancelled);
+	}
+
+	private void sendCancels(List<Message.Request> requests) {
+		for (final var request : requests) {
+			try {
+				peer.send(new Message.Cancel(request.index(), request.begin(), request.length()));
+			} catch (IOException e) {
+				if (BitTorrentApplication.DEBUG) {
+					System.err.println("Failed to send CANCEL to %s: %s".formatted(peer.getRemoteAddress(), e.getMessage()));
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Queues requests for the blocks of a piece, or only for the missing ones
+	 * when resuming a piece another session has started.
+	 */
+	private synchronized void planPiece(int pieceIndex, PieceBuffer partial) {
+		if (inProgress.isEmpty()) {
+			// Only start the snub clock once we are waiting for something
+			lastProgressNanos = System.nanoTime();
+			estimator.onIdle();
+		}
+
+		final var buffer = partial != null
+			? partial
+			: new PieceBuffer(pieceIndex, pieceSize(torrentInfo, pieceIndex), settings.blockSize());
+
+		pendingRequests.addAll(buffer.missingBlocks());
+		inProgress.put(pieceIndex, buffer);
+	}
+
+	/**
+	 * Hands a complete piece to the verifier pool. The listener is called from
+	 * the pool once the hash has been checked; a piece that does not match
+	 * goes back to the source, and too many of them fail the session on its
+	 * next turn.
+	 */
+	private void completePiece(PieceBuffer buffer, PieceSource source, PieceListener listener) {
+		final var pieceIndex = buffer.getPieceIndex();
+		final var data = buffer.getData();
+
+		synchronized (this) {
+			++verifyingPieces;
+		}
+
+		PieceVerifier.getInstance()
+			.verify(buffer, torrentInfo.pieces().get(pieceIndex))
+			.thenCompose(matches -> matches ? store(buffer, data, listener) : discard(buffer, source))
+			.whenComplete((stored, error) -> {
+				try {
+					if (error != null) {
+						throw toIOException(error, pieceIndex);
+					}
+
+					// Stored first, so the piece can be served once announced
+					if (stored) {
+						peer.onPieceVerified(pieceIndex);
+					}
+				} catch (IOException e) {
+					onVerificationFailed(e);
+				} catch (RuntimeException e) {
+					onVerificationFailed(new IOException("failed to deliver piece %d".formatted(pieceIndex), e));
+				} finally {
+					synchronized (this) {
+						--verifyingPieces;
+						notifyAll();
+					}
+				}
+			});
+	}
+
+	/**
+	 * Hands a checked piece to the listener.
+	 *
+	 * @return completes with {@code true} once the piece is stored
+	 */
+	private CompletionStage<Boolean> store(PieceBuffer buffer, ByteBuffer data, PieceListener listener) {
+		try {
+			return listener.onPieceDownloaded(buffer.getPieceIndex(), data, buffer::release).thenApply(result -> true);
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	/**
+	 * Starts a piece whose hash did not match over, and gives up on the peer
+	 * once it has sent {@link #MAX_HASH_FAILURES} bad pieces.
+	 *
+	 * @return completes with {@code false}, or fails once the peer is given up
+	 */
+	private CompletionStage<Boolean> discard(PieceBuffer buffer, PieceSource source) {
+		final var pieceIndex = buffer.getPieceIndex();
+
+		// No way to tell which block was bad, so the piece goes back empty
+		buffer.reset();
+		source.release(this, List.of(buffer));
+
+		final int failures;
+		synchronized (this) {
+			failures = ++hashFailures;
+		}
+
+		if (failures >= MAX_HASH_FAILURES) {
+			return CompletableFuture.failedFuture(new IOException("peer %s sent %d pieces that do not match their hash, the last one %d".formatted(peer.getRemoteAddress(), failures, pieceIndex)));
+		}
+
+		if (BitTorrentApplication.DEBUG) {
+			System.err.println("Piece %d from %s does not match its hash. Downloading it again.".formatted(pieceIndex, peer.getRemoteAddress()));
+		}
+		return CompletableFuture.completedFuture(false);
+	}
+
+	private static IOException toIOException(Throwable error, int pieceIndex) {
+		final var cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+		if (cause instanceof IOException exception) {
+			return exception;
+		}
+
+		return new IOException("failed to deliver piece %d".formatted(pieceIndex), cause);
+	}
+
+	private synchronized void onVerificationFailed(IOException exception) {
+		if (verificationFailure == null) {
+			verificationFailure = exception;
+		}
+	}
+
+	private synchronized void throwIfVerificationFailed() throws IOException {
+		if (verificationFailure != null) {
+			throw verificationFailure;
+		}
+	}
+
+	/**
+	 * Waits for pieces still being hashed, so that every piece has been
+	 * delivered or failed when {@link #download} returns.
+	 */
+	private synchronized void awaitVerifications() throws IOException, InterruptedException {
+		while (verifyingPieces > 0) {
+			wait();
+		}
+
+		throwIfVerificationFailed();
+	}
+
+	/**
+	 * Size of a piece in bytes; the last piece may be shorter.
+	 */
+	public static int pieceSize(TorrentInfo torrentInfo, int pieceIndex) {
+		final var pieceLength = torrentInfo.pieceLength();
+		final var remaining = torrentInfo.length() - (long) pieceIndex * pieceLength;
+
+		return (int) Math.min(pieceLength, remaining);
+	}
+
+	@FunctionalInterface
+	public interface PieceSource {
+
+		/**
+		 * Returns the next piece for {@code session} to download, or -1 when
+		 * there is nothing left that its peer can serve.
+		 */
+		int nextPiece(PeerDownloadSession session);
+
+		/**
+		 * Takes back pieces that {@code session} gave up on before finishing,
+		 * along with the blocks it had received.
+		 */
+		default void release(PeerDownloadSession session, Collection<PieceBuffer> pieces) {
+		}
+
+		/**
+		 * Returns the blocks already received for a piece that was just
+		 * handed out, or {@code null} to start it from scratch.
+		 */
+		default PieceBuffer takePartialPiece(int pieceIndex) {
+			return null;
+		}
+
+		/**
+		 * Removes the pieces this source will never hand out from
+		 * {@code pieces}, so that a peer having only those is not interesting.
+		 */
+		default void retainWanted(BitSet pieces) {
+		}
+
+		static PieceSource of(int... pieceIndices) {
+			final var queue = new ArrayDeque<Integer>();
+			for (final var pieceIndex : pieceIndices) {
+				queue.add(pieceIndex);
+			}
+
+			return session -> queue.isEmpty() ? -1 : queue.poll();
+		}
+
+	}
+
+	@FunctionalInterface
+	public interface PieceListener {
+
+		/**
+		 * Stores a checked piece. The piece is announced to the peers once the
+		 * returned stage completes.
+		 *
+		 * @param data the piece, in a read-only direct buffer whose data does
+		 *             not change until {@code release} runs
+		 * @param release hands the buffer back for another piece, once
+		 *             nothing reads {@code data} any more; if it never runs,
+		 *             the buffer is simply not reused
+		 */
+		CompletionStage<?> onPieceDownloaded(int pieceIndex, ByteBuffer data, Runnable release) throws IOException;
+
+	}
+
+}
@@ -0,0 +1,55 @@
+package bittorrent.peer.download;
+
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-torrent histogram of how many connected peers have each piece, fed by
+ * the BITFIELD and HAVE messages of every connection for the torrent.
+ */
+public class PieceAvailability {
+
+	// Map<infoHashHex, PieceAvailability>
+	private static final Map<String, PieceAvailability> TORRENTS = new ConcurrentHashMap<>();
+
+	public static PieceAvailability forTorrent(String infoHashHex, int pieceCount) {
+		return TORRENTS.computeIfAbsent(infoHashHex.toLowerCase(), k -> new PieceAvailability(pieceCount));
+	}
+
+	/**
+	 * Forgets a torrent that is no longer downloaded or seeded.
+	 */
+	public static void remove(String infoHashHex) {
+		TORRENTS.remove(infoHashHex.toLowerCase());
+	}
+
+	private final int[] counts;
+
+	private PieceAvailability(int pieceCount) {
+		this.counts = new int[pieceCount];
+	}
+
+	public synchronized void addPiece(int pieceIndex) {
+		++counts[pieceIndex];
+	}
+
+	public synchronized void addPieces(BitSet pieces) {
+		for (var pieceIndex = pieces.nextSetBit(0); pieceIndex >= 0; pieceIndex = pieces.nextSetBit(pieceIndex + 1)) {
+			++counts[pieceIndex];
+		}
+	}
+
+	public synchronized void removePieces(BitSet pieces) {
+		for (var pieceIndex = pieces.nextSetBit(0); pieceIndex >= 0; pieceIndex = pieces.nextSetBit(pieceIndex + 1)) {
+			if (counts[pieceIndex] > 0) {
+				--counts[pieceIndex];
+			}
+		}
+	}
+
+	public synchronized int get(int pieceIndex) {
+		return counts[pieceIndex];
+	}
+
+}
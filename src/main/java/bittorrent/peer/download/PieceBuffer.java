@@ -0,0 +1,152 @@
+package bittorrent.peer.download;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import bittorrent.peer.protocol.Message;
+
+/**
+ * Data of a piece being downloaded, with a record of which blocks have
+ * arrived. A buffer outlives the session that started it, so that another
+ * peer only has to fetch the blocks that are still missing.
+ * <p>
+ * The SHA-1 of the piece is computed as the data arrives: every block that
+ * extends the in-order prefix is hashed while it is still in cache, and a
+ * block that arrives early waits in the buffer until the gap before it is
+ * filled. By the time the last block lands, only the digest is left to finish.
+ * <p>
+ * The data is held in a direct buffer from the {@link PieceBufferPool}, so
+ * that it is hashed and written to the storage without being copied to or
+ * from the heap. The buffer goes back to the pool on {@link #release()}.
+ */
+public class PieceBuffer {
+
+	private final int pieceIndex;
+	private final int blockSize;
+	private final ByteBuffer pooled;
+	private final ByteBuffer data;
+	private boolean released;
+	private final BitSet receivedBlocks;
+	private int bytesReceived;
+
+	// SHA-1 of the data before hashedBytes
+	private final MessageDigest digest;
+	private int hashedBytes;
+
+	PieceBuffer(int pieceIndex, int pieceSize, int blockSize) {
+		this.pieceIndex = pieceIndex;
+		this.blockSize = blockSize;
+		this.pooled = PieceBufferPool.getInstance().acquire(pieceSize);
+		this.data = pooled.slice(0, pieceSize);
+		this.receivedBlocks = new BitSet(blockCount());
+		this.digest = newSha1();
+	}
+
+	public int getPieceIndex() {
+		return pieceIndex;
+	}
+
+	/**
+	 * The whole piece, as a read-only buffer that shares the data.
+	 */
+	ByteBuffer getData() {
+		return data.asReadOnlyBuffer().clear();
+	}
+
+	int getBytesReceived() {
+		return bytesReceived;
+	}
+
+	/**
+	 * Stores a block. Blocks that were already received are ignored.
+	 *
+	 * @return {@code true} if the block was new
+	 */
+	boolean write(int begin, ByteBuffer block) {
+		final var blockIndex = begin / blockSize;
+		if (receivedBlocks.get(blockIndex)) {
+			return false;
+		}
+
+		final var blockLength = block.remaining();
+		data.put(begin, block, block.position(), blockLength);
+		receivedBlocks.set(blockIndex);
+		bytesReceived += blockLength;
+
+		// Hash every block that is now contiguous with the hashed prefix
+		while (hashedBytes < data.capacity() && receivedBlocks.get(hashedBytes / blockSize)) {
+			final var length = Math.min(blockSize, data.capacity() - hashedBytes);
+			digest.update(data.slice(hashedBytes, length));
+			hashedBytes += length;
+		}
+		return true;
+	}
+
+	boolean isComplete() {
+		return bytesReceived == data.capacity();
+	}
+
+	/**
+	 * The SHA-1 of the complete piece. Can only be called once.
+	 */
+	byte[] digest() {
+		if (!isComplete()) {
+			throw new IllegalStateException("piece %d is not complete".formatted(pieceIndex));
+		}
+
+		return digest.digest();
+	}
+
+	/**
+	 * Requests for every block that has not arrived yet, in order.
+	 */
+	List<Message.Request> missingBlocks() {
+		final var requests = new ArrayList<Message.Request>();
+
+		for (var blockIndex = receivedBlocks.nextClearBit(0); blockIndex < blockCount(); blockIndex = receivedBlocks.nextClearBit(blockIndex + 1)) {
+			final var begin = blockIndex * blockSize;
+			requests.add(new Message.Request(pieceIndex, begin, Math.min(blockSize, data.capacity() - begin)));
+		}
+
+		return requests;
+	}
+
+	/**
+	 * Forgets every block received, so that the piece is downloaded again
+	 * into the same buffer.
+	 */
+	void reset() {
+		receivedBlocks.clear();
+		bytesReceived = 0;
+		digest.reset();
+		hashedBytes = 0;
+	}
+
+	/**
+	 * Hands the data back to the pool. Nothing may use the piece or a view of
+	 * its data afterwards; releasing it again does nothing.
+	 */
+	public synchronized void release() {
+		if (!released) {
+			released = true;
+			PieceBufferPool.getInstance().release(pooled);
+		}
+	}
+
+	private static MessageDigest newSha1() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private int blockCount() {
+		return (data.capacity() + blockSize - 1) / blockSize;
+	}
+
+}
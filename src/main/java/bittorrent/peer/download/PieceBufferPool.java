@@ -0,0 +1,80 @@
+package bittorrent.peer.download;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Direct buffers that pieces are downloaded into. A buffer is handed back
+ * once its piece has been written out or dropped, so that downloading does
+ * not allocate a direct buffer per piece.
+ * <p>
+ * Buffers are sized in powers of two, so the shorter last piece of a torrent
+ * takes the same buffers as the others.
+ */
+public class PieceBufferPool {
+
+	private static final PieceBufferPool INSTANCE = new PieceBufferPool();
+
+	public static PieceBufferPool getInstance() {
+		return INSTANCE;
+	}
+
+	// Map<capacity, free buffers>, most recently released first
+	private final Map<Integer, Deque<ByteBuffer>> free = new HashMap<>();
+	private long freeBytes;
+
+	private long maxRetainedBytes = 64L * 1024 * 1024;
+
+	private PieceBufferPool() {
+	}
+
+	/**
+	 * @param maxRetainedBytes bytes of free buffers kept for reuse, or 0 to
+	 *        allocate a buffer for every piece
+	 */
+	public synchronized void setMaxRetained(long maxRetainedBytes) {
+		this.maxRetainedBytes = maxRetainedBytes;
+
+		free.clear();
+		freeBytes = 0;
+	}
+
+	/**
+	 * A buffer of at least {@code length} bytes, with its position at zero.
+	 */
+	public ByteBuffer acquire(int length) {
+		final var capacity = capacityFor(length);
+
+		synchronized (this) {
+			final var buffers = free.get(capacity);
+			if (buffers != null && !buffers.isEmpty()) {
+				freeBytes -= capacity;
+				return buffers.pop().clear();
+			}
+		}
+
+		return ByteBuffer.allocateDirect(capacity);
+	}
+
+	/**
+	 * Hands a buffer back for reuse. Nothing may read or write it afterwards.
+	 * Buffers that did not come from the pool are ignored.
+	 */
+	public synchronized void release(ByteBuffer buffer) {
+		final var capacity = buffer.capacity();
+		if (!buffer.isDirect() || capacity != capacityFor(capacity) || freeBytes + capacity > maxRetainedBytes) {
+			return;
+		}
+
+		free.computeIfAbsent(capacity, key -> new ArrayDeque<>()).push(buffer);
+		freeBytes += capacity;
+	}
+
+	private static int capacityFor(int length) {
+		return length <= 1 ? 1 : Integer.highestOneBit(length - 1) << 1;
+	}
+
+}
@@ -0,0 +1,508 @@
+package bittorrent.peer.download;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Hands out pieces of a torrent to concurrently running peer sessions.
+ * Every piece is assigned to at most one session at a time, except in
+ * endgame mode.
+ * <p>
+ * Pieces are picked rarest-first according to the torrent's
+ * {@link PieceAvailability}, with ties broken at random so that leechers
+ * spread out over the swarm. Pieces that were already started (and released
+ * by a failing session) are finished before untouched ones are opened, and
+ * keep the blocks that session had already received.
+ * <p>
+ * Pieces can be given a deadline, and a sliding window of pieces ahead of
+ * a playback position can be set for streaming. Pieces with a deadline go
+ * first (earliest first), then window pieces in order, and only then the
+ * rarest-first order above.
+ * <p>
+ * Pieces can also be given priorities, e.g. from the files they belong to.
+ * Pieces of priority 0 are not downloaded at all and the torrent counts as
+ * complete without them; otherwise higher priorities go before the
+ * rarest-first order.
+ * <p>
+ * Once no unassigned piece is left, idle sessions are given duplicates of
+ * pieces still in flight on other peers (endgame). The first verified copy
+ * wins and the other sessions cancel their outstanding requests for it, so a
+ * single slow peer cannot hold back the end of the download.
+ */
+public class PiecePicker implements PeerDownloadSession.PieceSource {
+
+	private final int pieceCount;
+	private final PieceAvailability availability;
+
+	// Pieces that are neither assigned to a session nor completed
+	private final BitSet pendingPieces;
+
+	// Pending pieces that a session had already started, and their blocks
+	private final BitSet startedPieces;
+	private final Map<Integer, PieceBuffer> partialPieces = new HashMap<>();
+
+	private final BitSet completedPieces;
+	private int completedCount;
+
+	// Verified pieces being stored by one session, see claimWrite
+	private final BitSet writingPieces;
+
+	// Pieces of priority above 0; priorities is null while all are equal
+	private final BitSet wantedPieces;
+	private int wantedCount;
+	private int wantedCompletedCount;
+	private int[] priorities;
+
+	// Sessions currently downloading each assigned piece
+	private final Map<Integer, Set<PeerDownloadSession>> holders = new HashMap<>();
+
+	// Urgent pieces and when they are needed, in epoch milliseconds
+	private final Map<Integer, Long> deadlines = new HashMap<>();
+
+	// Streaming: the next windowPieces missing pieces from playbackPiece on
+	private int playbackPiece;
+	private int windowPieces;
+
+	public PiecePicker(int pieceCount, PieceAvailability availability) {
+		this.pieceCount = pieceCount;
+		this.availability = availability;
+		this.pendingPieces = new BitSet(pieceCount);
+		this.startedPieces = new BitSet(pieceCount);
+		this.completedPieces = new BitSet(pieceCount);
+		this.writingPieces = new BitSet(pieceCount);
+		this.wantedPieces = new BitSet(pieceCount);
+		this.wantedCount = pieceCount;
+
+		pendingPieces.set(0, pieceCount);
+		wantedPieces.set(0, pieceCount);
+	}
+
+	@Override
+	public synchronized int nextPiece(PeerDownloadSession session) {
+		final var candidates = candidatesFor(session);
+		if (candidates.isEmpty()) {
+			return -1;
+		}
+
+		final int pieceIndex;
+		if (pendingPieces.isEmpty()) {
+			pieceIndex = pickLeastDuplicated(candidates);
+		} else {
+			final var urgent = pickUrgent(candidates);
+			if (urgent >= 0) {
+				pieceIndex = urgent;
+			} else {
+				// Finish pieces that were already started before opening new ones
+				final var tier = highestPriority(candidates);
+				final var started = (BitSet) tier.clone();
+				started.and(startedPieces);
+
+				pieceIndex = pickRarest(started.isEmpty() ? tier : started);
+			}
+
+			pendingPieces.clear(pieceIndex);
+			startedPieces.clear(pieceIndex);
+		}
+
+		holders.computeIfAbsent(pieceIndex, __ -> new HashSet<>()).add(session);
+		return pieceIndex;
+	}
+
+	/**
+	 * Asks for a piece to be downloaded before {@code deadlineMillis}. An
+	 * earlier deadline already set for the piece is kept.
+	 */
+	public synchronized void setDeadline(int pieceIndex, long deadlineMillis) {
+		if (completedPieces.get(pieceIndex)) {
+			return;
+		}
+
+		deadlines.merge(pieceIndex, deadlineMillis, Math::min);
+		notifyAll();
+	}
+
+	public synchronized void clearDeadline(int pieceIndex) {
+		deadlines.remove(pieceIndex);
+	}
+
+	/**
+	 * Downloads the next {@code windowPieces} missing pieces from
+	 * {@code playbackPiece} on in order, ahead of everything without a
+	 * deadline. The window slides forward as those pieces complete. A window
+	 * of 0 turns streaming off.
+	 * <p>
+	 * Deadlines of pieces behind the new position are dropped: the player
+	 * has moved past them, so they are picked rarest-first like the rest.
+	 */
+	public synchronized void setPlaybackWindow(int playbackPiece, int windowPieces) {
+		this.playbackPiece = Math.clamp(playbackPiece, 0, Math.max(0, pieceCount - 1));
+		this.windowPieces = Math.max(0, windowPieces);
+		deadlines.keySet().removeIf(this::isBehindPlayback);
+		notifyAll();
+	}
+
+	/**
+	 * Sets the priority of every piece. Pieces of priority 0 that are not
+	 * assigned yet are no longer handed out; ones already in flight are
+	 * finished.
+	 */
+	public synchronized void setPriorities(int[] piecePriorities) {
+		priorities = piecePriorities.clone();
+		wantedPieces.clear();
+		wantedCount = 0;
+		wantedCompletedCount = 0;
+
+		for (var pieceIndex = 0; pieceIndex < pieceCount; pieceIndex++) {
+			if (priorities[pieceIndex] <= 0) {
+				pendingPieces.clear(pieceIndex);
+				continue;
+			}
+
+			wantedPieces.set(pieceIndex);
+			++wantedCount;
+			if (completedPieces.get(pieceIndex)) {
+				++wantedCompletedCount;
+			} else if (!holders.containsKey(pieceIndex)) {
+				pendingPieces.set(pieceIndex);
+			}
+		}
+
+		notifyAll();
+	}
+
+	/**
+	 * Keeps the pieces that are wanted and not completed yet.
+	 */
+	@Override
+	public synchronized void retainWanted(BitSet pieces) {
+		pieces.and(wantedPieces);
+		pieces.andNot(completedPieces);
+	}
+
+	@Override
+	public synchronized PieceBuffer takePartialPiece(int pieceIndex) {
+		return partialPieces.remove(pieceIndex);
+	}
+
+	/**
+	 * Returns pieces that a session could not finish so that another session
+	 * can pick them up where it left off. Pieces still held by another
+	 * session stay assigned.
+	 */
+	@Override
+	public synchronized void release(PeerDownloadSession session, Collection<PieceBuffer> pieces) {
+		for (final var piece : pieces) {
+			final var pieceIndex = piece.getPieceIndex();
+
+			final var sessions = holders.get(pieceIndex);
+			if (sessions != null) {
+				sessions.remove(session);
+				if (!sessions.isEmpty()) {
+					piece.release();
+					continue;
+				}
+				holders.remove(pieceIndex);
+			}
+
+			if (completedPieces.get(pieceIndex)) {
+				piece.release();
+				continue;
+			}
+
+			// Requeued behind the player, so no longer urgent
+			if (isBehindPlayback(pieceIndex)) {
+				deadlines.remove(pieceIndex);
+			}
+
+			// Kept even if no longer wanted, in case it is wanted again
+			if (wantedPieces.get(pieceIndex)) {
+				pendingPieces.set(pieceIndex);
+			}
+			if (piece.getBytesReceived() == 0) {
+				piece.release();
+				continue;
+			}
+
+			// The piece with more blocks is kept, the other one is dropped
+			startedPieces.set(pieceIndex);
+			final var kept = partialPieces.get(pieceIndex);
+			if (kept == null || piece.getBytesReceived() > kept.getBytesReceived()) {
+				partialPieces.put(pieceIndex, piece);
+				if (kept != null) {
+					kept.release();
+				}
+			} else {
+				piece.release();
+			}
+		}
+
+		notifyAll();
+	}
+
+	/**
+	 * Records a downloaded and verified piece and cancels it on every other
+	 * session that is still downloading it.
+	 *
+	 * @return {@code false} if the piece had already been completed
+	 */
+	public boolean markCompleted(int pieceIndex) {
+		final Set<PeerDownloadSession> duplicates;
+
+		synchronized (this) {
+			if (completedPieces.get(pieceIndex)) {
+				return false;
+			}
+
+			completedPieces.set(pieceIndex);
+			writingPieces.clear(pieceIndex);
+			++completedCount;
+			if (wantedPieces.get(pieceIndex)) {
+				++wantedCompletedCount;
+			}
+			pendingPieces.clear(pieceIndex);
+			startedPieces.clear(pieceIndex);
+			duplicates = holders.remove(pieceIndex);
+			partialPieces.remove(pieceIndex);
+			deadlines.remove(pieceIndex);
+
+			notifyAll();
+		}
+
+		// Outside the lock: sessions take their own lock to cancel
+		if (duplicates != null) {
+			for (final var session : duplicates) {
+				session.cancelPiece(pieceIndex);
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Claims a verified piece for storing. In endgame several sessions may
+	 * verify the same piece; only the first one gets to write it, and it
+	 * calls {@link #markCompleted} or {@link #releaseWrite} afterwards.
+	 *
+	 * @return {@code false} if the piece is completed or already being written
+	 */
+	public synchronized boolean claimWrite(int pieceIndex) {
+		if (completedPieces.get(pieceIndex) || writingPieces.get(pieceIndex)) {
+			return false;
+		}
+
+		writingPieces.set(pieceIndex);
+		return true;
+	}
+
+	/**
+	 * Gives up a claim whose write failed, so that another copy can be
+	 * written.
+	 */
+	public synchronized void releaseWrite(int pieceIndex) {
+		writingPieces.clear(pieceIndex);
+	}
+
+	public synchronized boolean isCompleted(int pieceIndex) {
+		return completedPieces.get(pieceIndex);
+	}
+
+	/**
+	 * Whether every wanted piece has been completed.
+	 */
+	public synchronized boolean isComplete() {
+		return wantedCompletedCount == wantedCount;
+	}
+
+	public synchronized int getCompletedCount() {
+		return completedCount;
+	}
+
+	public synchronized int getWantedCount() {
+		return wantedCount;
+	}
+
+	public synchronized int getWantedCompletedCount() {
+		return wantedCompletedCount;
+	}
+
+	public synchronized BitSet getCompletedPieces() {
+		return (BitSet) completedPieces.clone();
+	}
+
+	/**
+	 * Waits until a piece the session's peer has is available for assignment
+	 * or the torrent is complete, whichever comes first.
+	 */
+	public synchronized void awaitWork(PeerDownloadSession session, long timeoutMillis) throws InterruptedException {
+		if (candidatesFor(session).isEmpty() && !isComplete()) {
+			wait(timeoutMillis);
+		}
+	}
+
+	/**
+	 * Waits until every piece from {@code firstPiece} to {@code lastPiece}
+	 * (inclusive) has been completed.
+	 *
+	 * @return {@code false} if the timeout elapsed first
+	 */
+	public synchronized boolean awaitPieces(int firstPiece, int lastPiece, long timeoutMillis) throws InterruptedException {
+		final var deadline = System.currentTimeMillis() + timeoutMillis;
+
+		while (completedPieces.nextClearBit(firstPiece) <= lastPiece) {
+			final var remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			wait(remaining);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Waits until the torrent is complete or the timeout elapses.
+	 */
+	public synchronized void awaitCompletion(long timeoutMillis) throws InterruptedException {
+		if (!isComplete()) {
+			wait(timeoutMillis);
+		}
+	}
+
+	private boolean isBehindPlayback(int pieceIndex) {
+		return windowPieces > 0 && pieceIndex < playbackPiece;
+	}
+
+	private BitSet candidatesFor(PeerDownloadSession session) {
+		final var candidates = session.getRemotePieces();
+		// Pieces this peer timed out on go to the others first
+		candidates.andNot(session.getTimedOutPieces());
+
+		if (!pendingPieces.isEmpty()) {
+			candidates.and(pendingPieces);
+			return candidates;
+		}
+
+		// Endgame: pieces in flight elsewhere that this session is not on yet
+		final var inFlight = new BitSet(pieceCount);
+		holders.forEach((pieceIndex, sessions) -> {
+			if (!sessions.contains(session)) {
+				inFlight.set(pieceIndex);
+			}
+		});
+
+		candidates.and(inFlight);
+		return candidates;
+	}
+
+	/**
+	 * Endgame pick: the piece with the fewest sessions on it, at random among
+	 * equals.
+	 */
+	private int pickLeastDuplicated(BitSet candidates) {
+		final var random = ThreadLocalRandom.current();
+
+		var best = -1;
+		var bestHolders = Integer.MAX_VALUE;
+		var ties = 0;
+
+		for (var pieceIndex = candidates.nextSetBit(0); pieceIndex >= 0; pieceIndex = candidates.nextSetBit(pieceIndex + 1)) {
+			final var count = holders.get(pieceIndex).size();
+
+			if (count < bestHolders) {
+				best = pieceIndex;
+				bestHolders = count;
+				ties = 1;
+			} else if (count == bestHolders && random.nextInt(++ties) == 0) {
+				best = pieceIndex;
+			}
+		}
+
+		return best;
+	}
+
+	/**
+	 * The candidate with the earliest deadline, else the first candidate in
+	 * the playback window, else -1.
+	 */
+	private int pickUrgent(BitSet candidates) {
+		var best = -1;
+		var bestDeadline = Long.MAX_VALUE;
+
+		for (final var entry : deadlines.entrySet()) {
+			final int pieceIndex = entry.getKey();
+			final long deadline = entry.getValue();
+
+			if (candidates.get(pieceIndex) && (deadline < bestDeadline || (deadline == bestDeadline && pieceIndex < best))) {
+				best = pieceIndex;
+				bestDeadline = deadline;
+			}
+		}
+
+		if (best >= 0) {
+			return best;
+		}
+
+		var remaining = windowPieces;
+		for (var pieceIndex = completedPieces.nextClearBit(playbackPiece); remaining > 0 && pieceIndex < pieceCount; pieceIndex = completedPieces.nextClearBit(pieceIndex + 1), --remaining) {
+			if (candidates.get(pieceIndex)) {
+				return pieceIndex;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * The candidates of the highest priority among them.
+	 */
+	private BitSet highestPriority(BitSet candidates) {
+		if (priorities == null) {
+			return candidates;
+		}
+
+		var highest = 0;
+		for (var pieceIndex = candidates.nextSetBit(0); pieceIndex >= 0; pieceIndex = candidates.nextSetBit(pieceIndex + 1)) {
+			highest = Math.max(highest, priorities[pieceIndex]);
+		}
+
+		final var tier = new BitSet(pieceCount);
+		for (var pieceIndex = candidates.nextSetBit(0); pieceIndex >= 0; pieceIndex = candidates.nextSetBit(pieceIndex + 1)) {
+			if (priorities[pieceIndex] == highest) {
+				tier.set(pieceIndex);
+			}
+		}
+		return tier;
+	}
+
+	/**
+	 * Lowest availability wins; ties are resolved by reservoir sampling so
+	 * every equally rare piece has the same chance of being picked.
+	 */
+	private int pickRarest(BitSet candidates) {
+		final var random = ThreadLocalRandom.current();
+
+		var best = -1;
+		var bestAvailability = Integer.MAX_VALUE;
+		var ties = 0;
+
+		for (var pieceIndex = candidates.nextSetBit(0); pieceIndex >= 0; pieceIndex = candidates.nextSetBit(pieceIndex + 1)) {
+			final var count = availability.get(pieceIndex);
+
+			if (count < bestAvailability) {
+				best = pieceIndex;
+				bestAvailability = count;
+				ties = 1;
+			} else if (count == bestAvailability && random.nextInt(++ties) == 0) {
+				best = pieceIndex;
+			}
+		}
+
+		return best;
+	}
+
+}
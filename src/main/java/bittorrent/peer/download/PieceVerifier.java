@@ -0,0 +1,65 @@
+package bittorrent.peer.download;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks downloaded pieces against their SHA-1 hash on a pool with one thread
+ * per core, shared by all downloads. Most of a piece has already been hashed
+ * as its blocks arrived, so the pool mainly finishes digests and hands
+ * verified pieces on, off the network thread.
+ * <p>
+ * The queue in front of the pool is bounded: when every thread is busy and
+ * the queue is full, the submitting session hashes the piece itself, which
+ * keeps it from receiving more and so bounds the pieces held in memory.
+ */
+public class PieceVerifier {
+
+	private static final PieceVerifier INSTANCE = new PieceVerifier(Runtime.getRuntime().availableProcessors());
+
+	public static PieceVerifier getInstance() {
+		return INSTANCE;
+	}
+
+	private final ThreadPoolExecutor executor;
+
+	private PieceVerifier(int threadCount) {
+		final var threadNumber = new AtomicInteger();
+
+		this.executor = new ThreadPoolExecutor(
+			threadCount,
+			threadCount,
+			0L,
+			TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<>(threadCount * 2),
+			runnable -> {
+				final var thread = new Thread(runnable);
+				thread.setName("PieceVerifier-" + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			},
+			(runnable, pool) -> {
+				// Like CallerRunsPolicy, but never drops the piece's future unanswered
+				if (pool.isShutdown()) {
+					throw new RejectedExecutionException("piece verifier is shut down");
+				}
+				runnable.run();
+			}
+		);
+	}
+
+	/**
+	 * Finishes the hash of a complete piece on the pool.
+	 *
+	 * @return a future completed with whether the hash matched
+	 */
+	public CompletableFuture<Boolean> verify(PieceBuffer piece, byte[] expectedHash) {
+		return CompletableFuture.supplyAsync(() -> Arrays.equals(expectedHash, piece.digest()), executor);
+	}
+
+}
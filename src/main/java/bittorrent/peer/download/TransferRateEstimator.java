@@ -0,0 +1,86 @@
+package bittorrent.peer.download;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates a peer's round-trip time and download rate from the time between
+ * sending a block request and receiving the block.
+ * <p>
+ * The round-trip time is the smallest sample of the last 10 to 20 seconds:
+ * later samples include the time a request waits behind the ones before it,
+ * which grows with the request window itself.
+ */
+class TransferRateEstimator {
+
+	private static final long RTT_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+	private static final long RATE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+	private static final double RATE_SMOOTHING = 0.3;
+
+	private long currentMinRttNanos = Long.MAX_VALUE;
+	private long previousMinRttNanos = Long.MAX_VALUE;
+	private long rttWindowStartNanos = System.nanoTime();
+
+	private long rateIntervalStartNanos = System.nanoTime();
+	private long rateIntervalBytes;
+	private double bytesPerSecond;
+
+	void onBlockReceived(long sentNanos, long receivedNanos, int length) {
+		if (receivedNanos - rttWindowStartNanos >= RTT_WINDOW_NANOS) {
+			previousMinRttNanos = currentMinRttNanos;
+			currentMinRttNanos = Long.MAX_VALUE;
+			rttWindowStartNanos = receivedNanos;
+		}
+		currentMinRttNanos = Math.min(currentMinRttNanos, receivedNanos - sentNanos);
+
+		rateIntervalBytes += length;
+		final var elapsed = receivedNanos - rateIntervalStartNanos;
+		if (elapsed >= RATE_INTERVAL_NANOS) {
+			final var sample = rateIntervalBytes * 1e9 / elapsed;
+			bytesPerSecond = bytesPerSecond == 0 ? sample : RATE_SMOOTHING * sample + (1 - RATE_SMOOTHING) * bytesPerSecond;
+
+			rateIntervalStartNanos = receivedNanos;
+			rateIntervalBytes = 0;
+		}
+	}
+
+	/**
+	 * Restarts the rate interval, so that time spent with nothing requested
+	 * does not count as a slow transfer.
+	 */
+	void onIdle() {
+		rateIntervalStartNanos = System.nanoTime();
+		rateIntervalBytes = 0;
+	}
+
+	/**
+	 * @return the round-trip time in nanoseconds, or -1 if not measured yet
+	 */
+	long getRttNanos() {
+		final var rtt = Math.min(currentMinRttNanos, previousMinRttNanos);
+		return rtt == Long.MAX_VALUE ? -1 : rtt;
+	}
+
+	double getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	/**
+	 * Number of requests to keep in flight: twice the bandwidth-delay product
+	 * in blocks, so that the window can still grow while it is what limits
+	 * the rate.
+	 *
+	 * @return the window, or {@code current} until there is enough data
+	 */
+	int requestWindow(int current, int blockSize, int min, int max) {
+		final var rttNanos = getRttNanos();
+		if (rttNanos < 0 || bytesPerSecond == 0) {
+			return current;
+		}
+
+		final var bandwidthDelayProduct = bytesPerSecond * rttNanos / 1e9;
+		final var window = (int) Math.ceil(2 * bandwidthDelayProduct / blockSize);
+
+		return Math.clamp(window, min, max);
+	}
+
+}
@@ -1,16 +1,11 @@
 package bittorrent.service;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HexFormat;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -38,13 +33,27 @@ import bittorrent.peer.Peer;
 import bittorrent.peer.PeerConnectionManager;
 import bittorrent.peer.SwarmManager;
 import bittorrent.peer.PeerServer;
+import bittorrent.peer.download.BlockBufferPool;
+import bittorrent.peer.download.DownloadSettings;
+import bittorrent.peer.download.PeerDownloadSession;
+import bittorrent.peer.download.PieceAvailability;
+import bittorrent.peer.download.PieceBufferPool;
+import bittorrent.peer.download.PiecePicker;
 import bittorrent.service.PeerStats;
 import bittorrent.bencode.BencodeDeserializer;
+import bittorrent.storage.DiskIo;
+import bittorrent.storage.FileChannelCache;
+import bittorrent.storage.PieceCache;
+import bittorrent.storage.Storage;
+import bittorrent.storage.StorageManager;
+import bittorrent.storage.StorageType;
+import bittorrent.torrent.PieceRechecker;
 import bittorrent.torrent.Torrent;
+import bittorrent.torrent.TorrentCreator;
 import bittorrent.torrent.TorrentInfo;
+import bittorrent.torrent.VerifiedPieces;
 import bittorrent.tracker.TrackerClient;
 import bittorrent.tracker.TrackerClient.Event;
-import bittorrent.util.DigestUtils;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 
@@ -73,11 +82,22 @@ public class BitTorrentService {
 	private final ScheduledExecutorService announceScheduler = Executors.newScheduledThreadPool(1);
 	private ScheduledFuture<?> announceTask;
 	private ScheduledFuture<?> saveTask;
+	// When each running download last saved its fast-resume record
+	// Map<infoHashHex, epoch millis>
+	private final Map<String, Long> lastResumeSaves = new ConcurrentHashMap<>();
+	// Torrents whose data file is being rechecked
+	private final java.util.Set<String> runningRechecks = ConcurrentHashMap.newKeySet();
 	
 	// Default download directory
 	private static final String DEFAULT_DOWNLOAD_DIR = System.getProperty("user.home") + "/bittorrent-downloads";
 	// Re-announce interval: 15 seconds (for faster tracker synchronization)
 	private static final long REANNOUNCE_INTERVAL_SECONDS = 15;
+	// How often an active download looks for new peers to add to the swarm
+	private static final long PEER_DISCOVERY_INTERVAL_MS = 10_000;
+	// Minimum interval between recheck progress updates
+	private static final long RECHECK_UPDATE_INTERVAL_MS = 500;
+	// How often a running download saves its fast-resume record
+	private static final long RESUME_SAVE_INTERVAL_MS = 5_000;
 
 	public BitTorrentService(PeerServer peerServer, BitTorrentConfig config, TorrentProgressService progressService,
 			bittorrent.service.storage.TorrentPersistenceService persistenceService) {
@@ -98,6 +118,14 @@ public class BitTorrentService {
 	public void init() {
 		// Initialize SwarmManager with listen port for port-specific storage
 		SwarmManager.initialize(config.getListenPort());
+		StorageManager.getInstance().setType(StorageType.valueOf(config.getStorageType().trim().toUpperCase()));
+		StorageManager.getInstance().setWriteCache(config.getWriteCacheSize(), config.getWriteCacheFlushInterval());
+		FileChannelCache.getInstance().setMaxOpen(config.getMaxOpenFiles());
+		BlockBufferPool.getInstance().configure(config.getBlockSize(), config.getReceiveBuffers());
+		PieceBufferPool.getInstance().setMaxRetained(config.getPieceBufferPoolSize());
+		PieceCache.getInstance().setCapacity(config.getPieceCacheSize());
+		DiskIo.getInstance().configure(config.getDiskReadThreads(), config.getDiskReadQueueSize(), 
+			config.getDiskWriteThreads(), config.getDiskWriteQueueSize());
 		
 		peerServer.start();
 		// Start periodic re-announcement task
@@ -150,6 +178,15 @@ public class BitTorrentService {
 					job.setCompletedPieces(state.completedPieces);
 					job.setStatus(DownloadJob.Status.DOWNLOADING);
 					job.setDownloadedFile(downloadedFile);
+					job.setTorrentInfo(torrentInfo);
+					if (state.filePriorities != null) {
+						state.filePriorities.forEach((fileIndex, priority) -> 
+							job.setFilePriority(fileIndex, DownloadJob.FilePriority.valueOf(priority)));
+					}
+					if (state.mode != null) {
+						job.setMode(DownloadJob.Mode.valueOf(state.mode));
+						job.setPlaybackPosition(state.playbackPosition);
+					}
 					
 					// Resume download in background
 					CompletableFuture<File> future = CompletableFuture.supplyAsync(() -> {
@@ -441,6 +478,9 @@ public class BitTorrentService {
 				// Shutdown download executor - use shutdownNow() to interrupt any blocking operations
 				// Don't wait for completion - executor will be terminated when JVM shuts down
 				downloadExecutor.shutdownNow();
+				
+				// Write out pieces still held in the write-back caches
+				StorageManager.getInstance().closeAll();
 			} catch (Exception e) {
 				// Ignore any errors during cleanup - we're shutting down anyway
 				if (BitTorrentApplication.DEBUG) {
@@ -459,6 +499,14 @@ public class BitTorrentService {
 	 * Returns immediately with a job ID.
 	 */
 	public String startDownload(String torrentPath, String outputFileName) {
+		return startDownload(torrentPath, outputFileName, DownloadJob.Mode.RAREST_FIRST);
+	}
+	
+	/**
+	 * Start an asynchronous download job with the given piece order.
+	 * Returns immediately with a job ID.
+	 */
+	public String startDownload(String torrentPath, String outputFileName, DownloadJob.Mode mode) {
 		try {
 			final var torrent = load(torrentPath);
 			final var torrentInfo = torrent.info();
@@ -473,7 +521,9 @@ public class BitTorrentService {
 			
 			// Create download job
 			DownloadJob job = new DownloadJob(infoHashHex, outputFileName);
+			job.setMode(mode);
 			job.setTotalPieces(torrentInfo.pieces().size());
+			job.setTorrentInfo(torrentInfo);
 			job.setStatus(DownloadJob.Status.DOWNLOADING);
 			
 			// Create output file in download directory
@@ -546,6 +596,247 @@ public class BitTorrentService {
 		}
 	}
 	
+	/**
+	 * Moves the playback position of a streaming download, so that the pieces
+	 * just ahead of it are downloaded next.
+	 */
+	public void setPlaybackPosition(String jobId, long position) {
+		DownloadJob job = downloadJobs.get(jobId);
+		if (job == null) {
+			throw new IllegalArgumentException("Download job not found: " + jobId);
+		}
+		if (job.getMode() != DownloadJob.Mode.STREAMING) {
+			throw new IllegalStateException("Job is not in streaming mode: " + jobId);
+		}
+		
+		job.setPlaybackPosition(Math.max(0, position));
+		
+		PiecePicker picker = job.getPiecePicker();
+		if (picker != null) {
+			applyPlaybackWindow(job, picker, job.getTorrentInfo());
+		}
+	}
+	
+	/**
+	 * Sets the priority of files of a multi-file download, or of all of its
+	 * files if {@code fileIndexes} is null. A completed download that now
+	 * wants more pieces is started again.
+	 */
+	public void setFilePriority(String jobId, List<Integer> fileIndexes, DownloadJob.FilePriority priority) throws IOException {
+		DownloadJob job = downloadJobs.get(jobId);
+		if (job == null) {
+			throw new IllegalArgumentException("Download job not found: " + jobId);
+		}
+		
+		final TorrentInfo torrentInfo = job.getTorrentInfo();
+		if (torrentInfo == null || !torrentInfo.isMultiFile()) {
+			throw new IllegalStateException("Job is not a multi-file download: " + jobId);
+		}
+		
+		final int fileCount = torrentInfo.files().size();
+		if (fileIndexes != null) {
+			for (int fileIndex : fileIndexes) {
+				if (fileIndex < 0 || fileIndex >= fileCount) {
+					throw new IllegalStateException("No file " + fileIndex + " in " + jobId + " (" + fileCount + " files)");
+				}
+			}
+		}
+		
+		synchronized (job) {
+			if (fileIndexes == null) {
+				for (int fileIndex = 0; fileIndex < fileCount; fileIndex++) {
+					job.setFilePriority(fileIndex, priority);
+				}
+			} else {
+				for (int fileIndex : fileIndexes) {
+					job.setFilePriority(fileIndex, priority);
+				}
+			}
+			applyFilePriorities(job);
+			
+			if (job.getStatus() == DownloadJob.Status.COMPLETED && job.getCompletedPieces() < job.getTotalPieces()) {
+				restartDownload(job);
+				System.out.println("Continuing completed download job " + jobId + " for newly wanted files");
+			}
+		}
+	}
+	
+	/**
+	 * Hands the file priorities of a job to its piece picker and storage. A
+	 * piece takes the highest priority of the files it overlaps, so boundary
+	 * pieces of a wanted file are downloaded even if the neighbouring file is
+	 * skipped. Without a running download, the wanted pieces are counted
+	 * against the verified ones.
+	 */
+	private void applyFilePriorities(DownloadJob job) {
+		final TorrentInfo torrentInfo = job.getTorrentInfo();
+		if (torrentInfo == null || !torrentInfo.isMultiFile()) {
+			return;
+		}
+		
+		synchronized (job) {
+			final int pieceLength = torrentInfo.pieceLength();
+			final int[] piecePriorities = new int[torrentInfo.pieces().size()];
+			final java.util.BitSet skippedFiles = new java.util.BitSet();
+			
+			final var files = torrentInfo.files();
+			for (int fileIndex = 0; fileIndex < files.size(); fileIndex++) {
+				final var file = files.get(fileIndex);
+				final var priority = job.getFilePriority(fileIndex);
+				if (priority == DownloadJob.FilePriority.SKIP) {
+					skippedFiles.set(fileIndex);
+					continue;
+				}
+				if (file.length() == 0) {
+					continue;
+				}
+				
+				// Priorities are declared lowest first, with SKIP as 0
+				final int firstPiece = (int) (file.offset() / pieceLength);
+				final int lastPiece = (int) ((file.offset() + file.length() - 1) / pieceLength);
+				for (int pieceIndex = firstPiece; pieceIndex <= lastPiece; pieceIndex++) {
+					piecePriorities[pieceIndex] = Math.max(piecePriorities[pieceIndex], priority.ordinal());
+				}
+			}
+			
+			StorageManager.getInstance().setSkippedFiles(job.getInfoHashHex(), skippedFiles);
+			
+			final PiecePicker picker = job.getPiecePicker();
+			if (picker != null) {
+				picker.setPriorities(piecePriorities);
+				job.setTotalPieces(picker.getWantedCount());
+				job.setCompletedPieces(picker.getWantedCompletedCount());
+				
+				// Peers may have become (un)interesting
+				final List<Peer> peers = job.getActivePeers();
+				if (peers != null) {
+					for (Peer peer : peers) {
+						try {
+							peer.updateInterest();
+						} catch (IOException e) {
+							// The peer's worker notices the broken connection
+						}
+					}
+				}
+			} else {
+				final java.util.BitSet verified = VerifiedPieces.forTorrent(job.getInfoHashHex(), piecePriorities.length).snapshot();
+				int wantedCount = 0;
+				int completedCount = 0;
+				for (int pieceIndex = 0; pieceIndex < piecePriorities.length; pieceIndex++) {
+					if (piecePriorities[pieceIndex] > 0) {
+						++wantedCount;
+						if (verified.get(pieceIndex)) {
+							++completedCount;
+						}
+					}
+				}
+				job.setTotalPieces(wantedCount);
+				job.setCompletedPieces(completedCount);
+			}
+		}
+	}
+	
+	/**
+	 * Total size of a job's file in bytes, or -1 if not known yet.
+	 */
+	public long getFileLength(String jobId) {
+		DownloadJob job = downloadJobs.get(jobId);
+		if (job == null) {
+			throw new IllegalArgumentException("Download job not found: " + jobId);
+		}
+		
+		if (job.getTorrentInfo() != null) {
+			return job.getTorrentInfo().length();
+		}
+		if (job.getStatus() == DownloadJob.Status.COMPLETED && job.getDownloadedFile() != null) {
+			return job.getDownloadedFile().length();
+		}
+		return -1;
+	}
+	
+	/**
+	 * Reads bytes {@code start} to {@code end} (inclusive) of a job's file,
+	 * which may still be downloading. The pieces covering the range are moved
+	 * to the front of the download queue, and the call blocks until they are
+	 * verified and written.
+	 *
+	 * @return the bytes, or null if the pieces did not arrive within the timeout
+	 * @throws IllegalStateException if part of the range is in a skipped file,
+	 *         or was not verified in a completed download
+	 */
+	public byte[] readRange(String jobId, long start, long end, long timeoutMillis) throws IOException, InterruptedException {
+		DownloadJob job = downloadJobs.get(jobId);
+		if (job == null) {
+			throw new IllegalArgumentException("Download job not found: " + jobId);
+		}
+		
+		final long deadline = System.currentTimeMillis() + timeoutMillis;
+		
+		// The picker only exists once peers are connected
+		PiecePicker picker = job.getPiecePicker();
+		while (picker == null && job.getStatus() != DownloadJob.Status.COMPLETED) {
+			if (System.currentTimeMillis() >= deadline) {
+				return null;
+			}
+			Thread.sleep(100);
+			picker = job.getPiecePicker();
+		}
+		
+		final TorrentInfo torrentInfo = job.getTorrentInfo();
+		final int pieceLength = torrentInfo.pieceLength();
+		final int firstPiece = (int) (start / pieceLength);
+		final int lastPiece = (int) (end / pieceLength);
+		final java.util.BitSet unavailable = new java.util.BitSet();
+		unavailable.set(firstPiece, lastPiece + 1);
+		
+		if (picker != null && job.getStatus() != DownloadJob.Status.COMPLETED) {
+			// Pieces of skipped files are never downloaded, so waiting for them is pointless
+			unavailable.andNot(picker.getCompletedPieces());
+			final java.util.BitSet wanted = (java.util.BitSet) unavailable.clone();
+			picker.retainWanted(wanted);
+			unavailable.andNot(wanted);
+			if (!unavailable.isEmpty()) {
+				throw new IllegalStateException("Piece " + unavailable.nextSetBit(0) + " of the range is in a skipped file");
+			}
+			
+			final long now = System.currentTimeMillis();
+			for (int pieceIndex = firstPiece; pieceIndex <= lastPiece; pieceIndex++) {
+				picker.setDeadline(pieceIndex, now);
+			}
+			
+			// A player reading here will read on from here
+			if (job.getMode() == DownloadJob.Mode.STREAMING) {
+				job.setPlaybackPosition(start);
+				applyPlaybackWindow(job, picker, job.getTorrentInfo());
+			}
+			
+			if (!picker.awaitPieces(firstPiece, lastPiece, Math.max(0, deadline - System.currentTimeMillis()))) {
+				return null;
+			}
+		} else {
+			// A completed download only verified the files that were not skipped
+			final VerifiedPieces verifiedPieces = VerifiedPieces.forTorrent(job.getInfoHashHex(), torrentInfo.pieces().size());
+			verifiedPieces.loadOnce(job.getDownloadedFile(), torrentInfo);
+			verifiedPieces.removeFrom(unavailable);
+			if (!unavailable.isEmpty()) {
+				throw new IllegalStateException("Piece " + unavailable.nextSetBit(0) + " of the range was not downloaded");
+			}
+		}
+		
+		try (StorageManager.Handle handle = StorageManager.getInstance()
+				.acquireForReading(job.getInfoHashHex(), job.getDownloadedFile(), job.getTorrentInfo())) {
+			return handle.storage().read(start, (int) (end - start + 1));
+		}
+	}
+	
+	private void applyPlaybackWindow(DownloadJob job, PiecePicker picker, TorrentInfo torrentInfo) {
+		final int pieceLength = torrentInfo.pieceLength();
+		final int playbackPiece = (int) Math.min(job.getPlaybackPosition() / pieceLength, torrentInfo.pieces().size() - 1);
+		final int windowPieces = (int) Math.max(1, (config.getStreamingWindow() + pieceLength - 1) / pieceLength);
+		
+		picker.setPlaybackWindow(playbackPiece, windowPieces);
+	}
+	
 	/**
 	 * Get download job status.
 	 */
@@ -618,6 +909,91 @@ public class BitTorrentService {
 		return update;
 	}
 	
+	/**
+	 * Hashes every piece of a registered torrent's data file again in the
+	 * background. Progress is sent to the torrent's SSE subscribers.
+	 *
+	 * @return the number of pieces that will be checked
+	 */
+	public int recheckTorrent(String infoHash) {
+		final String infoHashHex = infoHash.toLowerCase();
+		final TorrentInfo torrentInfo = peerServer.getTorrentInfo(infoHashHex);
+		final File dataFile = peerServer.getTorrentFile(infoHashHex);
+		if (torrentInfo == null || dataFile == null) {
+			throw new IllegalArgumentException("Torrent not found: " + infoHash);
+		}
+		if (!dataFile.exists()) {
+			throw new IllegalArgumentException("Data file not found: " + dataFile.getAbsolutePath());
+		}
+		
+		// A running download is still writing the file and tracks its own pieces
+		for (DownloadJob job : downloadJobs.values()) {
+			if (job.getInfoHashHex().equalsIgnoreCase(infoHashHex) && job.getStatus() == DownloadJob.Status.DOWNLOADING) {
+				throw new IllegalStateException("Torrent is still downloading: " + infoHash);
+			}
+		}
+		
+		if (!runningRechecks.add(infoHashHex)) {
+			throw new IllegalStateException("Recheck already running: " + infoHash);
+		}
+		
+		downloadExecutor.submit(() -> runRecheck(infoHashHex, torrentInfo, dataFile));
+		return torrentInfo.pieces().size();
+	}
+	
+	private void runRecheck(String infoHashHex, TorrentInfo torrentInfo, File dataFile) {
+		final int pieceCount = torrentInfo.pieces().size();
+		final long startTime = System.currentTimeMillis();
+		final java.util.concurrent.atomic.AtomicLong lastUpdate = new java.util.concurrent.atomic.AtomicLong(startTime);
+		final PieceRechecker rechecker = new PieceRechecker(
+			config.getRecheckThreads(), config.getRecheckIoConcurrency(), config.getRecheckWindow());
+		
+		try {
+			sendRecheckUpdate(infoHashHex, "CHECKING", 0, 0, pieceCount, null);
+			
+			// The file is read directly, so cached pieces must be on it
+			StorageManager.getInstance().sync(infoHashHex);
+			PieceCache.getInstance().invalidate(infoHashHex);
+			
+			final java.util.BitSet verified = rechecker.recheck(dataFile, torrentInfo, (checkedPieces, verifiedPieces) -> {
+				final long now = System.currentTimeMillis();
+				final long last = lastUpdate.get();
+				if (now - last >= RECHECK_UPDATE_INTERVAL_MS && lastUpdate.compareAndSet(last, now)) {
+					sendRecheckUpdate(infoHashHex, "CHECKING", checkedPieces, verifiedPieces, pieceCount, null);
+				}
+			});
+			
+			VerifiedPieces.forTorrent(infoHashHex, pieceCount).replace(verified);
+			persistenceService.saveResumeState(infoHashHex, dataFile, verified, torrentInfo, false);
+			
+			sendRecheckUpdate(infoHashHex, "COMPLETED", pieceCount, verified.cardinality(), pieceCount, null);
+			System.out.println("Recheck of " + infoHashHex + " finished in " + (System.currentTimeMillis() - startTime) + 
+				" ms: " + verified.cardinality() + "/" + pieceCount + " pieces verified");
+		} catch (IOException e) {
+			System.err.println("Recheck of " + infoHashHex + " failed: " + e.getMessage());
+			sendRecheckUpdate(infoHashHex, "FAILED", 0, 0, pieceCount, e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			runningRechecks.remove(infoHashHex);
+		}
+	}
+	
+	private void sendRecheckUpdate(String infoHashHex, String status, int checkedPieces, int verifiedPieces, int totalPieces, String error) {
+		Map<String, Object> update = new LinkedHashMap<>();
+		update.put("infoHash", infoHashHex);
+		update.put("type", "recheck");
+		update.put("status", status);
+		update.put("totalPieces", totalPieces);
+		update.put("checkedPieces", checkedPieces);
+		update.put("verifiedPieces", verifiedPieces);
+		update.put("progress", totalPieces == 0 ? 100.0 : checkedPieces * 100.0 / totalPieces);
+		if (error != null) {
+			update.put("error", error);
+		}
+		progressService.sendUpdate(null, infoHashHex, update);
+	}
+	
 	/**
 	 * Force announce to tracker for a torrent
 	 */
@@ -715,6 +1091,17 @@ public class BitTorrentService {
 			throw new IllegalStateException("Job is not in FAILED or TRYING_TO_CONNECT status: " + job.getStatus());
 		}
 		
+		restartDownload(job);
+		System.out.println("Retrying failed download job: " + jobId);
+	}
+	
+	/**
+	 * Starts the download of a job again in the background, keeping the
+	 * pieces already verified.
+	 */
+	private void restartDownload(DownloadJob job) throws IOException {
+		final String jobId = job.getJobId();
+		
 		// Reset status and clear error message
 		job.setStatus(DownloadJob.Status.DOWNLOADING);
 		job.setErrorMessage(null);
@@ -779,8 +1166,6 @@ public class BitTorrentService {
 		
 		// Add to activeTorrentsForAnnounce for tracking
 		activeTorrentsForAnnounce.put(job.getInfoHashHex(), torrent);
-		
-		System.out.println("Retrying failed download job: " + jobId);
 	}
 	
 	/**
@@ -898,7 +1283,22 @@ public class BitTorrentService {
 		final SwarmManager swarmManager = SwarmManager.getInstance();
 		
 		// Register file for seeding (even if incomplete, we can serve pieces we have)
+		final boolean newFile = !outputFile.exists();
 		peerServer.registerTorrent(torrentInfo, outputFile);
+		
+		// Verified pieces are shared with the connections serving this torrent
+		final VerifiedPieces verifiedPieces = VerifiedPieces.forTorrent(infoHashHex, torrentInfo.pieces().size());
+		if (newFile) {
+			// Nothing to find in a file we are about to create
+			verifiedPieces.markLoaded();
+			try {
+				persistenceService.deleteResumeState(infoHashHex);
+			} catch (IOException e) {
+				System.err.println("Failed to delete stale resume data for " + infoHashHex + ": " + e.getMessage());
+			}
+		} else {
+			restoreVerifiedPieces(infoHashHex, outputFile, torrentInfo, verifiedPieces);
+		}
 
 		// 1) Ensure we have some peers in the swarm
 		final int MIN_KNOWN_PEERS = 3;
@@ -974,124 +1374,97 @@ public class BitTorrentService {
 
 			// 3) Pre-allocate file and download pieces incrementally
 			final int pieceCount = torrentInfo.pieces().size();
-			final long fileLength = torrentInfo.length();
 			final int pieceLength = torrentInfo.pieceLength();
 			
-			// Pre-allocate the file to its full size so pieces can be written at correct positions
-			try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(outputFile, "rw")) {
-				raf.setLength(fileLength);
-			}
-
 			// Download and write pieces incrementally as they're received
-			try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(outputFile, "rw")) {
-				int peerDiscoveryCounter = 0;
-				final int PEER_DISCOVERY_INTERVAL = 10; // Check for new peers every 10 pieces
-				
-				for (int pieceIndex = 0; pieceIndex < pieceCount; pieceIndex++) {
-					// Periodically check for new peers
-					if (peerDiscoveryCounter++ % PEER_DISCOVERY_INTERVAL == 0) {
-						List<Peer> newPeers = discoverAndConnectNewPeers(
-							infoHashHex, torrent, torrentInfo, outputFile, 
-							new ArrayList<>(peers), swarmManager);
-						
-						if (!newPeers.isEmpty()) {
-							peers.addAll(newPeers);
-							job.setActivePeers(new ArrayList<>(peers)); // Update job with new peers
-							if (BitTorrentApplication.DEBUG) {
-								System.out.println("Added " + newPeers.size() + " new peer(s). Total: " + peers.size());
-							}
-						}
-					}
-					
-					// Filter out closed peers before selecting
-					List<Peer> availablePeers = peers.stream()
-						.filter(p -> !p.isClosed())
-						.collect(java.util.stream.Collectors.toList());
+			// Every connected peer downloads different pieces at the same time,
+			// rarest pieces in the swarm first
+			final PiecePicker picker = new PiecePicker(pieceCount, 
+				PieceAvailability.forTorrent(infoHashHex, pieceCount));
+			final java.util.Set<Peer> workingPeers = ConcurrentHashMap.newKeySet();
+			long lastPeerDiscovery = System.currentTimeMillis();
+			
+			// Pieces already verified in this file (e.g. on retry) are not downloaded again
+			final java.util.BitSet alreadyVerified = verifiedPieces.snapshot();
+			for (int pieceIndex = alreadyVerified.nextSetBit(0); pieceIndex >= 0; pieceIndex = alreadyVerified.nextSetBit(pieceIndex + 1)) {
+				picker.markCompleted(pieceIndex);
+			}
+			job.setCompletedPieces(picker.getCompletedCount());
+			
+			job.setTorrentInfo(torrentInfo);
+			job.setDownloadedFile(outputFile);
+			job.setPiecePicker(picker);
+			// Skipped files are only known to the storage from here on
+			applyFilePriorities(job);
+			
+			// Sized to the full file so pieces can be written at correct positions;
+			// stays open afterwards for seeding
+			final Storage storage = StorageManager.getInstance().openForWriting(infoHashHex, outputFile, torrentInfo);
+			if (job.getMode() == DownloadJob.Mode.STREAMING) {
+				// Container headers and index usually sit at either end of the file
+				picker.setDeadline(0, System.currentTimeMillis());
+				picker.setDeadline(pieceCount - 1, System.currentTimeMillis());
+				applyPlaybackWindow(job, picker, torrentInfo);
+			}
+			
+			while (!picker.isComplete()) {
+				// Periodically check for new peers
+				if (System.currentTimeMillis() - lastPeerDiscovery >= PEER_DISCOVERY_INTERVAL_MS) {
+					lastPeerDiscovery = System.currentTimeMillis();
+					List<Peer> newPeers = discoverAndConnectNewPeers(
+						infoHashHex, torrent, torrentInfo, outputFile, 
+						new ArrayList<>(peers), swarmManager);
 					
-					if (availablePeers.isEmpty()) {
-						// Try to discover new peers one more time
-						List<Peer> newPeers = discoverAndConnectNewPeers(
-							infoHashHex, torrent, torrentInfo, outputFile, 
-							new ArrayList<>(peers), swarmManager);
-						
-						if (newPeers.isEmpty()) {
-							// Set status to TRYING_TO_CONNECT instead of failing
-							job.setStatus(DownloadJob.Status.TRYING_TO_CONNECT);
-							job.setErrorMessage("No available peers for piece " + pieceIndex + ". Waiting for peers...");
-							throw new IOException("No available peers for piece " + pieceIndex);
-						}
+					if (!newPeers.isEmpty()) {
 						peers.addAll(newPeers);
-						availablePeers = newPeers;
-					}
-					
-					// Pick a peer in round-robin fashion from available peers
-					Peer peer = availablePeers.get(pieceIndex % availablePeers.size());
-					java.net.InetSocketAddress peerAddress = peer.getRemoteAddress();
-					long pieceSize = (pieceIndex == pieceCount - 1) 
-						? (fileLength % pieceLength)
-						: pieceLength;
-					
-					try {
-						long startTime = System.currentTimeMillis();
-						byte[] data = peer.downloadPiece(torrentInfo, pieceIndex);
-						long downloadTime = System.currentTimeMillis() - startTime;
-						
-						// Write piece immediately to file at correct position
-						long pieceStart = (long) pieceIndex * pieceLength;
-						raf.seek(pieceStart);
-						raf.write(data);
-						
-						// Force write to disk so piece is immediately available for serving
-						raf.getFD().sync();
-						
-						job.setCompletedPieces(pieceIndex + 1);
-						
-						// Track peer statistics
-						job.recordPieceDownloaded(pieceIndex, peerAddress, pieceSize);
-						
-						// Update peer stats with connection state
-						PeerStats stats = job.getOrCreatePeerStats(peerAddress);
-						// Note: Peer connection state would need to be exposed from Peer class
-						// For now, we track download stats
-						
-						// Send progress update after each piece
-						sendProgressUpdate(job);
-						
+						job.setActivePeers(new ArrayList<>(peers)); // Update job with new peers
 						if (BitTorrentApplication.DEBUG) {
-							System.out.println("Downloaded and wrote piece " + pieceIndex + "/" + pieceCount + 
-								" (" + (pieceIndex + 1) * 100 / pieceCount + "%) from " + peerAddress);
-						}
-					} catch (IOException | InterruptedException e) {
-						// Peer failed, remove it and try another
-						System.err.println("Failed to download piece " + pieceIndex + " from " + peerAddress + 
-							": " + e.getMessage());
-						peers.remove(peer);
-						swarmManager.unregisterActivePeer(infoHashHex, peerAddress);
-						
-						// Try with another peer if available
-						availablePeers = peers.stream()
-							.filter(p -> !p.isClosed())
-							.collect(java.util.stream.Collectors.toList());
-						
-						if (availablePeers.isEmpty()) {
-							throw new IOException("No peers available after failure: " + e.getMessage());
+							System.out.println("Added " + newPeers.size() + " new peer(s). Total: " + peers.size());
 						}
-						
-						// Retry with different peer
-						pieceIndex--; // Retry this piece
-						continue;
 					}
 				}
+				
+				// Start a worker for every open peer that doesn't have one yet
+				for (Peer peer : peers) {
+					if (!peer.isClosed() && workingPeers.add(peer)) {
+						downloadExecutor.submit(() -> runPeerWorker(
+							peer, torrentInfo, picker, storage, job, peers, workingPeers));
+					}
+				}
+				
+				if (workingPeers.isEmpty()) {
+					// Try to discover new peers one more time
+					List<Peer> newPeers = discoverAndConnectNewPeers(
+						infoHashHex, torrent, torrentInfo, outputFile, 
+						new ArrayList<>(peers), swarmManager);
+					
+					if (newPeers.isEmpty()) {
+						// Set status to TRYING_TO_CONNECT instead of failing
+						job.setStatus(DownloadJob.Status.TRYING_TO_CONNECT);
+						job.setErrorMessage("No available peers for remaining " + 
+							(picker.getWantedCount() - picker.getWantedCompletedCount()) + " piece(s). Waiting for peers...");
+						throw new IOException("No available peers after " + 
+							picker.getWantedCompletedCount() + "/" + picker.getWantedCount() + " pieces");
+					}
+					peers.addAll(newPeers);
+					job.setActivePeers(new ArrayList<>(peers));
+					continue;
+				}
+				
+				picker.awaitCompletion(1000);
 			}
 
-			// Inform tracker that we now have the full file (completed download, now seeding)
+			// Inform tracker that we now have the full file (completed download, now seeding);
+			// with skipped files we are still a leecher
 			// Tracker is optional - don't fail the download if tracker is unavailable
-			try {
-				trackerClient.announce(torrent, config.getListenPort(), 0L, Event.COMPLETED);
-			} catch (IOException e) {
-				// Tracker unavailable - log but don't fail the download
-				System.err.println("Tracker unavailable when announcing completion: " + e.getMessage() + 
-					". Download succeeded regardless.");
+			if (picker.getCompletedCount() == pieceCount) {
+				try {
+					trackerClient.announce(torrent, config.getListenPort(), 0L, Event.COMPLETED);
+				} catch (IOException e) {
+					// Tracker unavailable - log but don't fail the download
+					System.err.println("Tracker unavailable when announcing completion: " + e.getMessage() + 
+						". Download succeeded regardless.");
+				}
 			}
 			
 			// Register for periodic re-announcements (now that we're seeding)
@@ -1116,6 +1489,132 @@ public class BitTorrentService {
 				}
 			}
 			job.setActivePeers(null);
+			
+			// Final resume record; a complete file is not written to any more
+			final PiecePicker picker = job.getPiecePicker();
+			if (picker != null) {
+				final java.util.BitSet completed = picker.getCompletedPieces();
+				try {
+					StorageManager.getInstance().sync(infoHashHex);
+					persistenceService.saveResumeState(infoHashHex, outputFile, completed, 
+						torrentInfo, !picker.isComplete());
+				} catch (IOException e) {
+					System.err.println("Failed to write pieces of " + infoHashHex + " to disk: " + e.getMessage());
+				}
+			}
+			job.setPiecePicker(null);
+			lastResumeSaves.remove(infoHashHex);
+		}
+	}
+
+	/**
+	 * Loads the verified pieces of an existing data file from its resume
+	 * record, or hashes the whole file if the record is missing or stale.
+	 */
+	private void restoreVerifiedPieces(String infoHashHex, File outputFile, TorrentInfo torrentInfo, VerifiedPieces verifiedPieces) {
+		final java.util.BitSet saved = persistenceService.loadResumeState(infoHashHex, outputFile, torrentInfo);
+		if (saved != null && verifiedPieces.loadFrom(saved)) {
+			System.out.println("Fast-resumed " + infoHashHex + ": " + saved.cardinality() + "/" + 
+				torrentInfo.pieces().size() + " pieces already verified");
+			return;
+		}
+		
+		verifiedPieces.loadOnce(outputFile, torrentInfo);
+	}
+
+	/**
+	 * Saves the resume record of a running download, at most once every
+	 * {@link #RESUME_SAVE_INTERVAL_MS}. The pieces it lists are synced to
+	 * disk first.
+	 */
+	private void checkpointResumeState(String infoHashHex, File outputFile, Storage storage, 
+			PiecePicker picker, TorrentInfo torrentInfo) throws IOException {
+		final long now = System.currentTimeMillis();
+		final long saved = lastResumeSaves.compute(infoHashHex, 
+			(key, last) -> last == null || now - last >= RESUME_SAVE_INTERVAL_MS ? now : last);
+		if (saved != now) {
+			return;
+		}
+		
+		final java.util.BitSet completed = picker.getCompletedPieces();
+		storage.sync();
+		persistenceService.saveResumeState(infoHashHex, outputFile, completed, torrentInfo, true);
+	}
+
+	/**
+	 * Downloads pieces from a single peer until the torrent is complete or the
+	 * peer fails. Unfinished pieces of a failed peer go back to the picker.
+	 */
+	private void runPeerWorker(Peer peer, TorrentInfo torrentInfo, PiecePicker picker, 
+			Storage storage, DownloadJob job, List<Peer> peers, java.util.Set<Peer> workingPeers) {
+		final String infoHashHex = job.getInfoHashHex();
+		final java.net.InetSocketAddress peerAddress = peer.getRemoteAddress();
+		final int pieceCount = torrentInfo.pieces().size();
+		final PeerDownloadSession session = new PeerDownloadSession(peer, torrentInfo, new DownloadSettings(
+			config.getBlockSize(),
+			config.getRequestPipelineDepth(),
+			config.getRequestPipelineMin(),
+			config.getRequestPipelineMax(),
+			config.getRequestTimeout(),
+			config.getSnubTimeout()
+		));
+		
+		try {
+			while (!picker.isComplete() && !peer.isClosed()) {
+				// Written on the disk pool; waits while its queue is full
+				session.download(picker, (pieceIndex, data, release) -> DiskIo.getInstance().write(data.remaining(), () -> {
+					// In endgame another peer may have delivered this piece first
+					if (!picker.claimWrite(pieceIndex)) {
+						release.run();
+						return null;
+					}
+					
+					// Write piece immediately to file at correct position; readable
+					// by uploads right away, made durable in batches. The buffer is
+					// reused once the write-back cache has flushed it
+					try {
+						storage.write(data.duplicate(), (long) pieceIndex * torrentInfo.pieceLength(), release);
+					} catch (IOException e) {
+						picker.releaseWrite(pieceIndex);
+						throw e;
+					}
+					picker.markCompleted(pieceIndex);
+					int completedPieces = picker.getWantedCompletedCount();
+					job.setCompletedPieces(completedPieces);
+					
+					// Track peer statistics
+					job.recordPieceDownloaded(pieceIndex, peerAddress, data.remaining());
+					
+					// Send progress update after each piece
+					sendProgressUpdate(job);
+					checkpointResumeState(infoHashHex, job.getDownloadedFile(), storage, picker, torrentInfo);
+					
+					if (BitTorrentApplication.DEBUG) {
+						System.out.println("Downloaded and wrote piece " + pieceIndex + "/" + pieceCount + 
+							" (" + completedPieces * 100 / Math.max(1, picker.getWantedCount()) + "%) from " + peerAddress);
+					}
+					return null;
+				}));
+				
+				// Nothing left to hand out right now; wait for pieces released by other peers
+				picker.awaitWork(session, 1000);
+			}
+		} catch (Exception e) {
+			// Peer failed, remove it and hand its unfinished pieces to the other peers
+			System.err.println("Failed to download from " + peerAddress + ": " + e.getMessage());
+			picker.release(session, session.getUnfinishedPieces());
+			peers.remove(peer);
+			SwarmManager.getInstance().unregisterActivePeer(infoHashHex, peerAddress);
+			try {
+				peer.close();
+			} catch (Exception closeException) {
+				// Ignore - the connection is already unusable
+			}
+			if (e instanceof InterruptedException) {
+				Thread.currentThread().interrupt();
+			}
+		} finally {
+			workingPeers.remove(peer);
 		}
 	}
 
@@ -1245,7 +1744,7 @@ public class BitTorrentService {
 			case "seed" -> seed(args[1], args[2]); // seed <torrent> <filePath>
 			case "create_torrent" -> {
 				if (args.length < 3) {
-					System.out.println("Usage: create_torrent <inputFile> <outputTorrent>");
+					System.out.println("Usage: create_torrent <inputFileOrDirectory> <outputTorrent>");
 					return;
 				}
 				createTorrent(args[1], args[2]);
@@ -1304,50 +1803,28 @@ public class BitTorrentService {
 	}
 
 	/**
-	 * Creates a single-file .torrent for the given input file, pointing to the local tracker.
+	 * Creates a .torrent for the given file or directory, pointing to the local tracker.
+	 * The piece length is chosen from the total size.
 	 */
 	public void createTorrent(String inputPath, String outputPath) throws IOException {
 		final var input = Paths.get(inputPath);
 		if (!Files.exists(input)) {
-			System.err.println("Input file does not exist: " + inputPath);
-			return;
-		}
-
-		final long length = Files.size(input);
-		final String name = input.getFileName().toString();
-		final int pieceLength = 262_144; // 256 KiB, matches many common torrents
-
-		// 1. Compute piece hashes
-		final var piecesOut = new ByteArrayOutputStream();
-		try (InputStream in = Files.newInputStream(input)) {
-			byte[] buffer = new byte[pieceLength];
-			int read;
-			while ((read = in.read(buffer)) != -1) {
-				byte[] block = (read == pieceLength) ? buffer : Arrays.copyOf(buffer, read);
-				byte[] hash = DigestUtils.sha1(block);
-				piecesOut.write(hash);
-			}
+			throw new IOException("Input does not exist: " + inputPath);
 		}
 
-		final String piecesStr = new String(piecesOut.toByteArray(), StandardCharsets.ISO_8859_1);
-
-		// 2. Build info dictionary
-		Map<String, Object> info = new LinkedHashMap<>();
-		info.put("name", name);
-		info.put("length", length);
-		info.put("piece length", (long) pieceLength);
-		info.put("pieces", piecesStr);
+		// 1. Hash pieces in parallel and build info dictionary
+		final Map<String, Object> info = new TorrentCreator().createInfo(input, 0);
 
-		// 3. Build root dictionary with local tracker announce
+		// 2. Build root dictionary with local tracker announce
 		Map<String, Object> root = new LinkedHashMap<>();
 		root.put("announce", "http://localhost:8080/announce");
 		root.put("info", info);
 
-		// 4. Bencode and write to file
+		// 3. Bencode and write to file
 		byte[] encoded = new BencodeSerializer().writeAsBytes(root);
 		Files.write(Paths.get(outputPath), encoded);
 
-		System.out.println("Created torrent: " + outputPath);
+		System.out.println("Created torrent: " + outputPath + " (piece length " + info.get("piece length") + ")");
 	}
 
 	/**
@@ -1383,6 +1860,11 @@ public class BitTorrentService {
 		if (peerServer.unregisterTorrent(normalized)) {
 			removed = true;
 		}
+		
+		// Also when it was never seeded, e.g. a download that failed early
+		StorageManager.getInstance().remove(normalized);
+		VerifiedPieces.remove(normalized);
+		PieceAvailability.remove(normalized);
 
 		// Delete stored torrent file
 		if (persistenceService != null) {
@@ -1390,6 +1872,7 @@ public class BitTorrentService {
 				if (persistenceService.deleteTorrentFile(normalized)) {
 					removed = true;
 				}
+				persistenceService.deleteResumeState(normalized);
 			} catch (IOException e) {
 				throw new RuntimeException("Failed to delete torrent file: " + e.getMessage(), e);
 			}
@@ -1562,11 +2045,11 @@ public class BitTorrentService {
 			}
 
 			// 4) Write all pieces to the final file
-			try (final var fileOutputStream = new FileOutputStream(finalFile)) {
-				for (int i = 0; i < pieceCount; i++) {
-					fileOutputStream.write(pieceData[i]);
-				}
+			final Storage storage = StorageManager.getInstance().openForWriting(infoHashHex, finalFile, torrentInfo);
+			for (int i = 0; i < pieceCount; i++) {
+				storage.write((long) i * torrentInfo.pieceLength(), pieceData[i]);
 			}
+			storage.sync();
 
 			// Inform tracker that we now have the full file (completed download, now seeding)
 			// Tracker is optional - don't fail the download if tracker is unavailable
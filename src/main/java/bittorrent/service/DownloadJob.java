@@ -7,6 +7,8 @@ import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import bittorrent.peer.Peer;
+import bittorrent.peer.download.PiecePicker;
+import bittorrent.torrent.TorrentInfo;
 
 /**
  * Represents an asynchronous download job with enhanced tracking.
@@ -21,6 +23,28 @@ public class DownloadJob {
         TRYING_TO_CONNECT
     }
 
+    /**
+     * Order in which pieces are downloaded.
+     */
+    public enum Mode {
+        // Rarest pieces in the swarm first
+        RAREST_FIRST,
+        // First and last pieces, then a window ahead of the playback position;
+        // the rest rarest-first in the background
+        STREAMING
+    }
+
+    /**
+     * How much a file of a multi-file torrent is wanted. Pieces of skipped
+     * files are not downloaded; pieces of higher priority files go first.
+     */
+    public enum FilePriority {
+        SKIP,
+        LOW,
+        NORMAL,
+        HIGH
+    }
+
     private final String jobId;
     private final String infoHashHex;
     private final String fileName;
@@ -31,6 +55,13 @@ public class DownloadJob {
     private int completedPieces;
     private List<Peer> activePeers;
     private CompletableFuture<File> future;
+    private Mode mode = Mode.RAREST_FIRST;
+    private volatile long playbackPosition;
+    private volatile PiecePicker piecePicker;
+    private volatile TorrentInfo torrentInfo;
+    
+    // Files without an entry are NORMAL: Map<fileIndex, priority>
+    private final Map<Integer, FilePriority> filePriorities = new ConcurrentHashMap<>();
     
     // Enhanced tracking: Map<peerAddress, PeerStats>
     private final Map<String, PeerStats> peerStats = new ConcurrentHashMap<>();
@@ -134,6 +165,63 @@ public class DownloadJob {
         this.future = future;
     }
     
+    public Mode getMode() {
+        return mode;
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Byte offset in the file that a streaming player is currently at.
+     */
+    public long getPlaybackPosition() {
+        return playbackPosition;
+    }
+
+    public void setPlaybackPosition(long playbackPosition) {
+        this.playbackPosition = playbackPosition;
+    }
+
+    /**
+     * Piece picker of the running download, or null when not downloading.
+     */
+    public PiecePicker getPiecePicker() {
+        return piecePicker;
+    }
+
+    public void setPiecePicker(PiecePicker piecePicker) {
+        this.piecePicker = piecePicker;
+    }
+
+    public TorrentInfo getTorrentInfo() {
+        return torrentInfo;
+    }
+
+    public void setTorrentInfo(TorrentInfo torrentInfo) {
+        this.torrentInfo = torrentInfo;
+    }
+    
+    public FilePriority getFilePriority(int fileIndex) {
+        return filePriorities.getOrDefault(fileIndex, FilePriority.NORMAL);
+    }
+
+    public void setFilePriority(int fileIndex, FilePriority priority) {
+        if (priority == FilePriority.NORMAL) {
+            filePriorities.remove(fileIndex);
+        } else {
+            filePriorities.put(fileIndex, priority);
+        }
+    }
+
+    /**
+     * Files whose priority is not NORMAL.
+     */
+    public Map<Integer, FilePriority> getFilePriorities() {
+        return filePriorities;
+    }
+    
     public Map<String, PeerStats> getPeerStats() {
         return peerStats;
     }
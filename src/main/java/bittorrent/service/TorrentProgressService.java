@@ -65,11 +65,12 @@ public class TorrentProgressService {
     }
     
     /**
-     * Send update to subscribers
+     * Send update to subscribers; jobId is null for updates that belong to
+     * no download job
      */
     public void sendUpdate(String jobId, String infoHash, Map<String, Object> data) {
         // Send to job-specific subscribers
-        SseEmitter jobEmitter = jobSubscribers.get(jobId);
+        SseEmitter jobEmitter = jobId != null ? jobSubscribers.get(jobId) : null;
         if (jobEmitter != null) {
             try {
                 jobEmitter.send(SseEmitter.event()
@@ -3,6 +3,9 @@ package bittorrent.service.storage;
 import bittorrent.BitTorrentApplication;
 import bittorrent.config.BitTorrentConfig;
 import bittorrent.service.DownloadJob;
+import bittorrent.storage.MultiFileStorage;
+import bittorrent.torrent.TorrentFile;
+import bittorrent.torrent.TorrentInfo;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.reflect.TypeToken;
@@ -14,6 +17,9 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -28,6 +34,7 @@ public class TorrentPersistenceService {
     private final String torrentsDir;
     private final String downloadJobsFile;
     private final String seedingTorrentsFile;
+    private final String resumeDir;
     
     private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
 
@@ -39,6 +46,7 @@ public class TorrentPersistenceService {
         this.torrentsDir = this.storageDir + "/torrents";
         this.downloadJobsFile = this.storageDir + "/download_jobs.json";
         this.seedingTorrentsFile = this.storageDir + "/seeding_torrents.json";
+        this.resumeDir = this.storageDir + "/resume";
         
         // Create directories if they don't exist
         try {
@@ -50,6 +58,10 @@ public class TorrentPersistenceService {
             if (!Files.exists(torrentsPath)) {
                 Files.createDirectories(torrentsPath);
             }
+            Path resumePath = Path.of(this.resumeDir);
+            if (!Files.exists(resumePath)) {
+                Files.createDirectories(resumePath);
+            }
         } catch (IOException e) {
             System.err.println("Failed to create storage directories: " + e.getMessage());
         }
@@ -119,6 +131,14 @@ public class TorrentPersistenceService {
                     state.completedPieces = job.getCompletedPieces();
                     state.downloadedFilePath = job.getDownloadedFile() != null ? 
                         job.getDownloadedFile().getAbsolutePath() : null;
+                    state.mode = job.getMode().name();
+                    state.playbackPosition = job.getPlaybackPosition();
+                    if (!job.getFilePriorities().isEmpty()) {
+                        state.filePriorities = new HashMap<>();
+                        for (Map.Entry<Integer, DownloadJob.FilePriority> entry : job.getFilePriorities().entrySet()) {
+                            state.filePriorities.put(entry.getKey(), entry.getValue().name());
+                        }
+                    }
                     states.add(state);
                 }
             }
@@ -211,6 +231,193 @@ public class TorrentPersistenceService {
         }
     }
 
+    /**
+     * Save the fast-resume record of a torrent: which pieces of its data file
+     * are verified, along with the file's size and modification time. The
+     * record is replaced atomically so a crash never leaves half of one.
+     * For a multi-file torrent the data file is its directory, and the size
+     * and time of each file of its layout and of its parts file are recorded.
+     * @param downloading Whether the file may still be written to after this
+     */
+    public synchronized void saveResumeState(String infoHashHex, File dataFile, BitSet pieces, TorrentInfo torrentInfo, boolean downloading) {
+        int pieceCount = torrentInfo.pieces().size();
+        ResumeState state = new ResumeState();
+        state.infoHashHex = infoHashHex;
+        state.dataFilePath = dataFile.getAbsolutePath();
+        state.fileSize = torrentInfo.isMultiFile() ? torrentInfo.length() : dataFile.length();
+        state.lastModified = dataFile.lastModified();
+        state.files = fileStates(dataFile, torrentInfo);
+        state.downloading = downloading;
+        state.pieceCount = pieceCount;
+        state.verifiedPieces = Base64.getEncoder().encodeToString(toBitfield(pieces, pieceCount));
+
+        Path target = resumePath(infoHashHex);
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            try (Writer writer = new FileWriter(temp.toFile())) {
+                gson.toJson(state, writer);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Failed to save resume data for " + infoHashHex + ": " + e.getMessage());
+            if (BitTorrentApplication.DEBUG) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Load the verified pieces of a torrent's data file from its fast-resume
+     * record, if the file still matches it.
+     * <p>
+     * The check only looks at the path, size and modification time. A record
+     * saved while the download was running also accepts a newer file, since
+     * pieces written after the last save move the time forward; those pieces
+     * are simply not in the record. The files of a multi-file torrent are
+     * created and extended as pieces arrive, so such a record also accepts
+     * files that grew or were created since.
+     * @return The verified pieces, or null if there is no usable record
+     */
+    public BitSet loadResumeState(String infoHashHex, File dataFile, TorrentInfo torrentInfo) {
+        int pieceCount = torrentInfo.pieces().size();
+        File file = resumePath(infoHashHex).toFile();
+        if (!file.exists()) {
+            return null;
+        }
+
+        ResumeState state;
+        try (Reader reader = new FileReader(file)) {
+            state = gson.fromJson(reader, ResumeState.class);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Failed to load resume data for " + infoHashHex + ": " + e.getMessage());
+            return null;
+        }
+
+        if (state == null || state.verifiedPieces == null
+                || state.pieceCount != pieceCount
+                || !dataFile.getAbsolutePath().equals(state.dataFilePath)
+                || !dataFile.exists()
+                || !isUnchanged(state, dataFile, torrentInfo)) {
+            return null;
+        }
+
+        byte[] bitfield;
+        try {
+            bitfield = Base64.getDecoder().decode(state.verifiedPieces);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (bitfield.length != (pieceCount + 7) / 8) {
+            return null;
+        }
+
+        BitSet pieces = new BitSet(pieceCount);
+        for (int pieceIndex = 0; pieceIndex < pieceCount; pieceIndex++) {
+            if ((bitfield[pieceIndex / 8] & (0x80 >>> (pieceIndex % 8))) != 0) {
+                pieces.set(pieceIndex);
+            }
+        }
+        return pieces;
+    }
+
+    /**
+     * Delete the fast-resume record of a torrent
+     * @return true if a record was removed
+     */
+    public synchronized boolean deleteResumeState(String infoHashHex) throws IOException {
+        return Files.deleteIfExists(resumePath(infoHashHex));
+    }
+
+    /**
+     * Size and time of each file of a multi-file torrent, in layout order and
+     * followed by its parts file, or null for a single file
+     */
+    private static List<FileState> fileStates(File dataFile, TorrentInfo torrentInfo) {
+        if (!torrentInfo.isMultiFile()) {
+            return null;
+        }
+
+        List<FileState> states = new ArrayList<>();
+        for (File file : layoutFiles(dataFile, torrentInfo)) {
+            FileState state = new FileState();
+            state.path = file.getAbsolutePath();
+            state.length = file.isFile() ? file.length() : -1;
+            state.lastModified = file.lastModified();
+            states.add(state);
+        }
+        return states;
+    }
+
+    private static List<File> layoutFiles(File dataFile, TorrentInfo torrentInfo) {
+        List<File> files = new ArrayList<>();
+        for (TorrentFile torrentFile : torrentInfo.layout().getFiles()) {
+            File file = dataFile;
+            for (String segment : torrentFile.path()) {
+                file = new File(file, segment);
+            }
+            files.add(file);
+        }
+        files.add(MultiFileStorage.partsPath(dataFile.toPath()).toFile());
+        return files;
+    }
+
+    /**
+     * Whether the data still matches its record; see {@link #loadResumeState}
+     */
+    private static boolean isUnchanged(ResumeState state, File dataFile, TorrentInfo torrentInfo) {
+        if (!torrentInfo.isMultiFile()) {
+            if (dataFile.length() != state.fileSize) {
+                return false;
+            }
+            long lastModified = dataFile.lastModified();
+            return state.downloading ? lastModified >= state.lastModified : lastModified == state.lastModified;
+        }
+
+        List<File> files = layoutFiles(dataFile, torrentInfo);
+        if (state.files == null || state.files.size() != files.size() || state.fileSize != torrentInfo.length()) {
+            return false;
+        }
+
+        for (int index = 0; index < files.size(); index++) {
+            File file = files.get(index);
+            FileState saved = state.files.get(index);
+            if (saved == null || !file.getAbsolutePath().equals(saved.path)) {
+                return false;
+            }
+
+            // A file that did not exist held none of the recorded pieces
+            if (saved.length < 0) {
+                if (!state.downloading && file.exists()) {
+                    return false;
+                }
+                continue;
+            }
+
+            if (!file.isFile()) {
+                return false;
+            }
+            boolean unchanged = state.downloading
+                ? file.length() >= saved.length && file.lastModified() >= saved.lastModified
+                : file.length() == saved.length && file.lastModified() == saved.lastModified;
+            if (!unchanged) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Path resumePath(String infoHashHex) {
+        return Path.of(resumeDir, infoHashHex.toLowerCase() + ".json");
+    }
+
+    private static byte[] toBitfield(BitSet pieces, int pieceCount) {
+        byte[] bitfield = new byte[(pieceCount + 7) / 8];
+        for (int pieceIndex = pieces.nextSetBit(0); pieceIndex >= 0 && pieceIndex < pieceCount; pieceIndex = pieces.nextSetBit(pieceIndex + 1)) {
+            bitfield[pieceIndex / 8] |= (byte) (0x80 >>> (pieceIndex % 8));
+        }
+        return bitfield;
+    }
+
     /**
      * Serializable state for download jobs
      */
@@ -222,6 +429,11 @@ public class TorrentPersistenceService {
         public int totalPieces;
         public int completedPieces;
         public String downloadedFilePath;
+        // Files whose priority is not NORMAL: Map<fileIndex, priority>
+        public Map<Integer, String> filePriorities;
+        // Piece order, null in states saved before it was recorded
+        public String mode;
+        public long playbackPosition;
     }
 
     /**
@@ -233,4 +445,30 @@ public class TorrentPersistenceService {
         public String dataFilePath;
         public String fileName;
     }
+
+    /**
+     * Serializable fast-resume record; verifiedPieces is the Base64 encoded
+     * bitfield in wire format
+     */
+    public static class ResumeState {
+        public String infoHashHex;
+        public String dataFilePath;
+        public long fileSize;
+        public long lastModified;
+        public boolean downloading;
+        public int pieceCount;
+        public String verifiedPieces;
+        // Files of a multi-file torrent, null for a single file
+        public List<FileState> files;
+    }
+
+    /**
+     * Size and modification time of one file of a multi-file torrent; the
+     * length is -1 if the file did not exist
+     */
+    public static class FileState {
+        public String path;
+        public long length;
+        public long lastModified;
+    }
 }
@@ -0,0 +1,248 @@
+package bittorrent.storage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs piece reads and writes on their own threads, off the network threads,
+ * with one queue for reads and one for writes.
+ * <p>
+ * Each queue is bounded by the bytes of the operations in it. Submitting to
+ * a full queue blocks, so a disk that cannot keep up slows down the network
+ * instead of piling up data in memory: uploads stop reading pieces ahead
+ * into the piece cache while the read queue is full, and downloads stop
+ * sending requests while the write queue is full.
+ */
+public class DiskIo {
+
+	private static final DiskIo INSTANCE = new DiskIo();
+
+	public static DiskIo getInstance() {
+		return INSTANCE;
+	}
+
+	public interface Task<T> {
+
+		T run() throws IOException;
+
+	}
+
+	/**
+	 * State of a queue, and totals since startup. Latencies are in
+	 * milliseconds; waiting is the time spent in the queue, service the time
+	 * spent doing the I/O.
+	 */
+	public record QueueStats(
+		int threads,
+		int queuedOperations,
+		long queuedBytes,
+		long maxQueuedBytes,
+		long completedOperations,
+		long failedOperations,
+		double averageWaitMillis,
+		double averageServiceMillis,
+		double maxLatencyMillis
+	) {}
+
+	private static final class Queue {
+
+		private final ThreadPoolExecutor executor;
+
+		// Guarded by this
+		private long maxBytes;
+		private long queuedBytes;
+		private int queuedOperations;
+		private long completedOperations;
+		private long failedOperations;
+		private long totalWaitNanos;
+		private long totalServiceNanos;
+		private long maxLatencyNanos;
+
+		private Queue(String name, int threads, long maxBytes) {
+			final var threadNumber = new AtomicInteger();
+
+			// Unbounded, since the byte budget bounds what gets in
+			this.executor = new ThreadPoolExecutor(
+				threads,
+				threads,
+				0L,
+				TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<>(),
+				runnable -> {
+					final var thread = new Thread(runnable);
+					thread.setName(name + "-" + threadNumber.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			);
+			this.maxBytes = maxBytes;
+		}
+
+		private synchronized void configure(int threads, long maxBytes) {
+			if (threads > executor.getMaximumPoolSize()) {
+				executor.setMaximumPoolSize(threads);
+				executor.setCorePoolSize(threads);
+			} else {
+				executor.setCorePoolSize(threads);
+				executor.setMaximumPoolSize(threads);
+			}
+
+			this.maxBytes = maxBytes;
+			notifyAll();
+		}
+
+		private <T> CompletableFuture<T> submit(long bytes, Task<T> task) throws InterruptedIOException {
+			acquire(bytes);
+
+			final var future = new CompletableFuture<T>();
+			final var queuedNanos = System.nanoTime();
+
+			executor.execute(() -> {
+				final var startNanos = System.nanoTime();
+
+				T result = null;
+				Throwable failure = null;
+				try {
+					result = task.run();
+				} catch (IOException | RuntimeException e) {
+					failure = e;
+				}
+
+				// Freed before the caller continues, so that it sees the room
+				release(bytes, queuedNanos, startNanos, System.nanoTime(), failure == null);
+
+				if (failure != null) {
+					future.completeExceptionally(failure);
+				} else {
+					future.complete(result);
+				}
+			});
+
+			return future;
+		}
+
+		private synchronized void acquire(long bytes) throws InterruptedIOException {
+			// An operation larger than the bound still gets in once the queue is empty
+			try {
+				while (queuedOperations > 0 && queuedBytes + bytes > maxBytes) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while waiting for the disk queue");
+			}
+
+			queuedBytes += bytes;
+			++queuedOperations;
+		}
+
+		private synchronized void release(long bytes, long queuedNanos, long startNanos, long endNanos, boolean succeeded) {
+			queuedBytes -= bytes;
+			--queuedOperations;
+
+			if (succeeded) {
+				++completedOperations;
+			} else {
+				++failedOperations;
+			}
+			totalWaitNanos += startNanos - queuedNanos;
+			totalServiceNanos += endNanos - startNanos;
+			maxLatencyNanos = Math.max(maxLatencyNanos, endNanos - queuedNanos);
+
+			notifyAll();
+		}
+
+		private synchronized boolean hasCapacity() {
+			return queuedBytes < maxBytes;
+		}
+
+		private synchronized boolean awaitCapacity(long timeoutMillis) throws InterruptedException {
+			final var deadline = System.currentTimeMillis() + timeoutMillis;
+
+			while (queuedBytes >= maxBytes) {
+				final var remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				wait(remaining);
+			}
+
+			return true;
+		}
+
+		private synchronized QueueStats getStats() {
+			final var operations = completedOperations + failedOperations;
+
+			return new QueueStats(
+				executor.getMaximumPoolSize(),
+				queuedOperations,
+				queuedBytes,
+				maxBytes,
+				completedOperations,
+				failedOperations,
+				operations > 0 ? totalWaitNanos / 1e6 / operations : 0,
+				operations > 0 ? totalServiceNanos / 1e6 / operations : 0,
+				maxLatencyNanos / 1e6
+			);
+		}
+
+	}
+
+	private final Queue reads = new Queue("DiskIo-Read", 4, 16 * 1024 * 1024);
+	private final Queue writes = new Queue("DiskIo-Write", 2, 64 * 1024 * 1024);
+
+	private DiskIo() {
+	}
+
+	public void configure(int readThreads, long readQueueBytes, int writeThreads, long writeQueueBytes) {
+		reads.configure(Math.max(1, readThreads), readQueueBytes);
+		writes.configure(Math.max(1, writeThreads), writeQueueBytes);
+	}
+
+	/**
+	 * Queues a read of {@code bytes} bytes, waiting while the read queue is
+	 * full.
+	 */
+	public <T> CompletableFuture<T> read(long bytes, Task<T> task) throws InterruptedIOException {
+		return reads.submit(bytes, task);
+	}
+
+	/**
+	 * Queues a write of {@code bytes} bytes, waiting while the write queue is
+	 * full.
+	 */
+	public <T> CompletableFuture<T> write(long bytes, Task<T> task) throws InterruptedIOException {
+		return writes.submit(bytes, task);
+	}
+
+	public boolean hasReadCapacity() {
+		return reads.hasCapacity();
+	}
+
+	public boolean hasWriteCapacity() {
+		return writes.hasCapacity();
+	}
+
+	/**
+	 * Waits until the write queue has room.
+	 *
+	 * @return false if it is still full after {@code timeoutMillis}
+	 */
+	public boolean awaitWriteCapacity(long timeoutMillis) throws InterruptedException {
+		return writes.awaitCapacity(timeoutMillis);
+	}
+
+	public QueueStats getReadStats() {
+		return reads.getStats();
+	}
+
+	public QueueStats getWriteStats() {
+		return writes.getStats();
+	}
+
+}
@@ -0,0 +1,197 @@
+package bittorrent.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bittorrent.BitTorrentApplication;
+
+/**
+ * Open channels of data files, shared by every storage reading or writing a
+ * file, so that the number of open files is bounded across all torrents.
+ * <p>
+ * Storages acquire a channel for each operation and release it afterwards.
+ * Idle channels stay open, but at most {@link #setMaxOpen(int) a number} of
+ * channels are kept: opening another one closes the least recently used idle
+ * channel, whether it was opened for reading or for writing. Channels are
+ * reference counted, so one that is dropped while in use is only closed by
+ * its last user.
+ */
+public class FileChannelCache {
+
+	private static final FileChannelCache INSTANCE = new FileChannelCache();
+
+	public static FileChannelCache getInstance() {
+		return INSTANCE;
+	}
+
+	private static final class OpenChannel {
+
+		private final Path path;
+		private final FileChannel channel;
+		private final boolean writable;
+
+		// Held by the map while the channel is in it, plus one per handle
+		private final AtomicInteger references = new AtomicInteger(1);
+		private volatile long lastUsed;
+
+		private OpenChannel(Path path, FileChannel channel, boolean writable) {
+			this.path = path;
+			this.channel = channel;
+			this.writable = writable;
+		}
+
+		/**
+		 * @return false if the channel was closed already
+		 */
+		private boolean retain() {
+			while (true) {
+				final var count = references.get();
+				if (count == 0) {
+					return false;
+				}
+				if (references.compareAndSet(count, count + 1)) {
+					return true;
+				}
+			}
+		}
+
+		private void release() {
+			if (references.decrementAndGet() == 0) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					if (BitTorrentApplication.DEBUG) {
+						System.err.println("Failed to close " + path + ": " + e.getMessage());
+					}
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * A reference to an open channel; the channel stays open at least until
+	 * the handle is closed.
+	 */
+	public static final class Handle implements Closeable {
+
+		private final OpenChannel open;
+		private boolean closed;
+
+		private Handle(OpenChannel open) {
+			this.open = open;
+		}
+
+		public FileChannel channel() {
+			return open.channel;
+		}
+
+		@Override
+		public synchronized void close() {
+			if (!closed) {
+				closed = true;
+				open.release();
+			}
+		}
+
+	}
+
+	// Map<absolute path, OpenChannel>
+	private final Map<Path, OpenChannel> channels = new ConcurrentHashMap<>();
+	private final AtomicLong useCounter = new AtomicLong();
+
+	private volatile int maxOpen = Integer.MAX_VALUE;
+
+	private FileChannelCache() {
+	}
+
+	/**
+	 * Sets how many files may be open at once. Channels in use are never
+	 * closed to stay under it.
+	 */
+	public void setMaxOpen(int maxOpen) {
+		this.maxOpen = Math.max(1, maxOpen);
+	}
+
+	/**
+	 * A handle on a channel of a file, which is opened if it is not open yet.
+	 * A channel opened for writing also serves reads. The handle must be
+	 * closed after use.
+	 *
+	 * @param writable whether to open for writing, creating the file if needed
+	 */
+	public Handle acquire(Path path, boolean writable) throws IOException {
+		final var key = path.toAbsolutePath().normalize();
+
+		final var open = channels.get(key);
+		if (open != null && (open.writable || !writable) && open.retain()) {
+			open.lastUsed = useCounter.incrementAndGet();
+			return new Handle(open);
+		}
+
+		synchronized (this) {
+			var current = channels.get(key);
+			if (current == null || (writable && !current.writable)) {
+				evictIdle(current != null ? 0 : 1);
+
+				final var channel = writable
+					? FileChannel.open(key, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE)
+					: FileChannel.open(key, StandardOpenOption.READ);
+				final var previous = channels.put(key, current = new OpenChannel(key, channel, writable));
+				if (previous != null) {
+					previous.release();
+				}
+			}
+
+			// Only closed once removed from the map, which needs this lock
+			current.retain();
+			current.lastUsed = useCounter.incrementAndGet();
+			return new Handle(current);
+		}
+	}
+
+	/**
+	 * Closes the channel of a file once it is no longer in use, e.g. because
+	 * the storage of the file was closed.
+	 */
+	public synchronized void close(Path path) {
+		final var open = channels.remove(path.toAbsolutePath().normalize());
+		if (open != null) {
+			open.release();
+		}
+	}
+
+	/**
+	 * Closes least recently used idle channels until {@code needed} more fit
+	 * under the limit, or none are left to close.
+	 */
+	private void evictIdle(int needed) {
+		while (channels.size() + needed > maxOpen) {
+			Map.Entry<Path, OpenChannel> oldest = null;
+			for (final var entry : channels.entrySet()) {
+				final var open = entry.getValue();
+				if (open.references.get() == 1
+						&& (oldest == null || open.lastUsed < oldest.getValue().lastUsed)) {
+					oldest = entry;
+				}
+			}
+
+			if (oldest == null) {
+				if (BitTorrentApplication.DEBUG) {
+					System.err.println("All %d open files are in use, opening one more".formatted(channels.size()));
+				}
+				return;
+			}
+
+			channels.remove(oldest.getKey()).release();
+		}
+	}
+
+}
@@ -0,0 +1,140 @@
+package bittorrent.storage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+
+/**
+ * Storage backed by a file, using positional {@link FileChannel} reads and
+ * writes.
+ * <p>
+ * The file's channel is taken from the {@link FileChannelCache} for each
+ * operation, so an idle file may be closed to stay under the limit of open
+ * files, and is opened again when it is next used.
+ */
+public class FileStorage implements Storage {
+
+	private static final FileChannelCache CHANNELS = FileChannelCache.getInstance();
+
+	private final Path path;
+	private final long size;
+	private final boolean writable;
+
+	/**
+	 * @param writable whether to open for writing, creating the file and
+	 *        growing it to {@code size} as needed
+	 */
+	public FileStorage(Path path, long size, boolean writable) throws IOException {
+		this.path = path;
+		this.size = size;
+		this.writable = writable;
+
+		try (var handle = CHANNELS.acquire(path, writable)) {
+			final var channel = handle.channel();
+			if (writable && channel.size() != size) {
+				if (channel.size() > size) {
+					channel.truncate(size);
+				} else if (size > 0) {
+					// Extend the file so that pieces can be written anywhere
+					channel.write(ByteBuffer.allocate(1), size - 1);
+				}
+			}
+		}
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public void read(ByteBuffer destination, long position) throws IOException {
+		try (var handle = CHANNELS.acquire(path, writable)) {
+			final var channel = handle.channel();
+			while (destination.hasRemaining()) {
+				final var read = channel.read(destination, position);
+				if (read < 0) {
+					throw new EOFException("end of %s at %d".formatted(path, position));
+				}
+				position += read;
+			}
+		}
+	}
+
+	@Override
+	public void write(ByteBuffer source, long position) throws IOException {
+		try (var handle = CHANNELS.acquire(path, writable)) {
+			final var channel = handle.channel();
+			while (source.hasRemaining()) {
+				position += channel.write(source, position);
+			}
+		}
+	}
+
+	/**
+	 * Uses a single gathering write (writev on Linux).
+	 */
+	@Override
+	public void write(ByteBuffer[] sources, long position) throws IOException {
+		var remaining = 0L;
+		for (final var source : sources) {
+			remaining += source.remaining();
+		}
+
+		try (var handle = CHANNELS.acquire(path, writable)) {
+			final var channel = handle.channel();
+
+			// Only gathering writes use the channel's position
+			synchronized (channel) {
+				channel.position(position);
+				while (remaining > 0) {
+					remaining -= channel.write(sources);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Uses {@link FileChannel#transferTo}, which the operating system can do
+	 * without copying the bytes into user space (sendfile on Linux).
+	 */
+	@Override
+	public void transferTo(long position, int length, WritableByteChannel target) throws IOException {
+		if (position < 0 || position + length > size) {
+			throw new EOFException("%d bytes at %d are outside of %s".formatted(length, position, path));
+		}
+
+		try (var handle = CHANNELS.acquire(path, writable)) {
+			final var channel = handle.channel();
+			long remaining = length;
+			while (remaining > 0) {
+				final var transferred = channel.transferTo(position, remaining, target);
+				if (transferred <= 0 && position >= channel.size()) {
+					throw new EOFException("end of %s at %d".formatted(path, position));
+				}
+				position += transferred;
+				remaining -= transferred;
+			}
+		}
+	}
+
+	@Override
+	public void sync() throws IOException {
+		try (var handle = CHANNELS.acquire(path, writable)) {
+			handle.channel().force(false);
+		}
+	}
+
+	/**
+	 * Closes the file's channel, once the operations in progress on it are
+	 * done.
+	 */
+	@Override
+	public void close() {
+		CHANNELS.close(path);
+	}
+
+}
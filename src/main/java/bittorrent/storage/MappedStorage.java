@@ -0,0 +1,119 @@
+package bittorrent.storage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Storage backed by a memory-mapped file. The file is mapped in regions of
+ * at most 1 GiB, since a single mapping cannot exceed 2 GiB.
+ */
+public class MappedStorage implements Storage {
+
+	private static final int REGION_SIZE = 1 << 30;
+
+	private final Path path;
+	private final long size;
+	private final MappedByteBuffer[] regions;
+
+	public MappedStorage(Path path, long size, boolean writable) throws IOException {
+		this.path = path;
+		this.size = size;
+		this.regions = new MappedByteBuffer[(int) ((size + REGION_SIZE - 1) / REGION_SIZE)];
+
+		final var options = writable
+			? new StandardOpenOption[] { StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE }
+			: new StandardOpenOption[] { StandardOpenOption.READ };
+
+		// Mappings stay valid after the channel is closed
+		try (FileChannel channel = FileChannel.open(path, options)) {
+			if (!writable && channel.size() < size) {
+				throw new EOFException("%s is shorter than %d bytes".formatted(path, size));
+			}
+
+			final var mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+			for (var index = 0; index < regions.length; index++) {
+				final long start = (long) index * REGION_SIZE;
+				regions[index] = channel.map(mode, start, Math.min(REGION_SIZE, size - start));
+			}
+		}
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public void read(ByteBuffer destination, long position) throws IOException {
+		checkRange(position, destination.remaining());
+
+		while (destination.hasRemaining()) {
+			final var region = regions[(int) (position / REGION_SIZE)];
+			final var offset = (int) (position % REGION_SIZE);
+			final var length = Math.min(destination.remaining(), region.capacity() - offset);
+
+			destination.put(region.slice(offset, length));
+			position += length;
+		}
+	}
+
+	@Override
+	public void transferTo(long position, int length, WritableByteChannel target) throws IOException {
+		checkRange(position, length);
+
+		while (length > 0) {
+			final var region = regions[(int) (position / REGION_SIZE)];
+			final var offset = (int) (position % REGION_SIZE);
+			final var chunk = Math.min(length, region.capacity() - offset);
+
+			final var slice = region.slice(offset, chunk);
+			while (slice.hasRemaining()) {
+				target.write(slice);
+			}
+			position += chunk;
+			length -= chunk;
+		}
+	}
+
+	@Override
+	public void write(ByteBuffer source, long position) throws IOException {
+		checkRange(position, source.remaining());
+
+		while (source.hasRemaining()) {
+			final var region = regions[(int) (position / REGION_SIZE)];
+			final var offset = (int) (position % REGION_SIZE);
+			final var length = Math.min(source.remaining(), region.capacity() - offset);
+
+			region.slice(offset, length).put(source.slice(source.position(), length));
+			source.position(source.position() + length);
+			position += length;
+		}
+	}
+
+	@Override
+	public void sync() {
+		for (final var region : regions) {
+			if (!region.isReadOnly()) {
+				region.force();
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		// Unmapped when the regions are garbage collected
+	}
+
+	private void checkRange(long position, int length) throws EOFException {
+		if (position < 0 || position + length > size) {
+			throw new EOFException("%d bytes at %d are outside of %s".formatted(length, position, path));
+		}
+	}
+
+}
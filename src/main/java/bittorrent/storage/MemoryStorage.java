@@ -0,0 +1,93 @@
+package bittorrent.storage;
+
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+
+/**
+ * Storage that only lives in memory, for benchmarks and tests: nothing is
+ * ever written to disk. Memory is allocated in chunks as they are first
+ * written to; unwritten data reads as zeros.
+ */
+public class MemoryStorage implements Storage {
+
+	private static final int CHUNK_SIZE = 64 * 1024 * 1024;
+
+	private final long size;
+	private final byte[][] chunks;
+
+	public MemoryStorage(long size) {
+		this.size = size;
+		this.chunks = new byte[(int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE)][];
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public void read(ByteBuffer destination, long position) throws EOFException {
+		checkRange(position, destination.remaining());
+
+		while (destination.hasRemaining()) {
+			final var index = (int) (position / CHUNK_SIZE);
+			final var offset = (int) (position % CHUNK_SIZE);
+			final var length = Math.min(destination.remaining(), chunkLength(index) - offset);
+
+			final byte[] chunk;
+			synchronized (this) {
+				chunk = chunks[index];
+			}
+
+			if (chunk != null) {
+				destination.put(chunk, offset, length);
+			} else {
+				destination.position(destination.position() + length);
+			}
+			position += length;
+		}
+	}
+
+	@Override
+	public void write(ByteBuffer source, long position) throws EOFException {
+		checkRange(position, source.remaining());
+
+		while (source.hasRemaining()) {
+			final var index = (int) (position / CHUNK_SIZE);
+			final var offset = (int) (position % CHUNK_SIZE);
+			final var length = Math.min(source.remaining(), chunkLength(index) - offset);
+
+			final byte[] chunk;
+			synchronized (this) {
+				if (chunks[index] == null) {
+					chunks[index] = new byte[chunkLength(index)];
+				}
+				chunk = chunks[index];
+			}
+
+			source.get(chunk, offset, length);
+			position += length;
+		}
+	}
+
+	@Override
+	public void sync() {
+		// Nothing to make durable
+	}
+
+	@Override
+	public void close() {
+		// Dropped with the object
+	}
+
+	private int chunkLength(int index) {
+		return (int) Math.min(CHUNK_SIZE, size - (long) index * CHUNK_SIZE);
+	}
+
+	private void checkRange(long position, int length) throws EOFException {
+		if (position < 0 || position + length > size) {
+			throw new EOFException("%d bytes at %d are outside of the storage".formatted(length, position));
+		}
+	}
+
+}
@@ -0,0 +1,364 @@
+package bittorrent.storage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import bittorrent.torrent.FileLayout;
+import bittorrent.torrent.TorrentFile;
+
+/**
+ * The data of a multi-file torrent, stored as the torrent's files below a
+ * directory. Ranges that cross file boundaries are split into one read or
+ * write per file. Files are opened the first time they are accessed, and
+ * with {@link StorageType#FILE} they share the limit on open files of the
+ * {@link FileChannelCache}, so idle ones are closed again.
+ * <p>
+ * A piece on a file boundary also holds data of the neighbouring files. For
+ * a skipped file that does not exist yet, that data goes to a parts file
+ * next to the directory instead, so that downloading the boundary piece of
+ * a wanted file does not create the skipped one. The parts file holds only
+ * the edges of each file that share a piece with another file. It is
+ * copied into a file when the file is first opened for writing, e.g. once
+ * it is no longer skipped.
+ */
+public class MultiFileStorage implements Storage {
+
+	private interface RegionIo {
+
+		void apply(Storage storage, long storagePosition, int rangeOffset, int length) throws IOException;
+
+	}
+
+	/**
+	 * Part of a span on one side of a file's edges.
+	 *
+	 * @param partsPosition where the region is in the parts file, or -1 if it
+	 *                      is not on an edge of the file
+	 */
+	private record Region(int fileIndex, long fileOffset, int rangeOffset, int length, long partsPosition) {}
+
+	private final Path directory;
+	private final FileLayout layout;
+	private final StorageType type;
+	private final boolean writable;
+
+	// Edges of each file, relative to the file: [0, headLength) shares its
+	// piece with earlier data, [tailStart, length) with later data
+	private final long[] headLength;
+	private final long[] tailStart;
+	private final long[] partsOffset;
+	private final Path partsPath;
+	private final long partsSize;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// Guarded by lock; files whose edges are in the parts file are detached
+	private final Storage[] storages;
+	private final boolean[] detached;
+	private final BitSet skipped;
+	private Storage parts;
+
+	/**
+	 * @param type         how each file is stored
+	 * @param writable     whether to open for writing, creating the directory
+	 *                     tree and the files as needed
+	 * @param skippedFiles files whose edges go to the parts file for as long
+	 *                     as the file does not exist
+	 */
+	public MultiFileStorage(Path directory, FileLayout layout, int pieceLength, StorageType type, boolean writable, BitSet skippedFiles) throws IOException {
+		this.directory = directory.toAbsolutePath().normalize();
+		this.layout = layout;
+		this.type = type;
+		this.writable = writable;
+
+		final var files = layout.getFiles();
+		this.storages = new Storage[files.size()];
+		this.detached = new boolean[files.size()];
+		this.skipped = (BitSet) skippedFiles.clone();
+		this.headLength = new long[files.size()];
+		this.tailStart = new long[files.size()];
+		this.partsOffset = new long[files.size()];
+		this.partsPath = partsPath(this.directory);
+
+		var size = 0L;
+		for (var index = 0; index < files.size(); index++) {
+			final var file = files.get(index);
+			final var start = file.offset();
+			final var end = start + file.length();
+
+			headLength[index] = start % pieceLength == 0 ? 0 : Math.min(file.length(), pieceLength - start % pieceLength);
+			tailStart[index] = end % pieceLength == 0 || end == layout.getLength()
+				? file.length()
+				: Math.max(headLength[index], file.length() - end % pieceLength);
+			partsOffset[index] = size;
+			size += headLength[index] + file.length() - tailStart[index];
+
+			final var path = pathOf(file);
+			detached[index] = !Files.exists(path);
+
+			// Empty files never hold any data, so they are created here
+			if (writable && !skipped.get(index)) {
+				Files.createDirectories(path.getParent());
+				if (file.length() == 0 && detached[index]) {
+					Files.createFile(path);
+					detached[index] = false;
+				}
+			}
+		}
+		this.partsSize = size;
+	}
+
+	/**
+	 * Changes which files are skipped. A skipped file that exists already
+	 * keeps being written to.
+	 */
+	public void setSkippedFiles(BitSet skippedFiles) {
+		lock.writeLock().lock();
+		try {
+			skipped.clear();
+			skipped.or(skippedFiles);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public long size() {
+		return layout.getLength();
+	}
+
+	@Override
+	public void read(ByteBuffer destination, long position) throws IOException {
+		final var start = destination.position();
+
+		forEachRegion(position, destination.remaining(), (storage, storagePosition, rangeOffset, length) ->
+			storage.read(destination.slice(start + rangeOffset, length), storagePosition));
+		destination.position(destination.limit());
+	}
+
+	@Override
+	public void write(ByteBuffer source, long position) throws IOException {
+		final var start = source.position();
+
+		forEachRegion(position, source.remaining(), (storage, storagePosition, rangeOffset, length) ->
+			storage.write(source.slice(start + rangeOffset, length), storagePosition));
+		source.position(source.limit());
+	}
+
+	@Override
+	public void transferTo(long position, int length, WritableByteChannel target) throws IOException {
+		forEachRegion(position, length, (storage, storagePosition, rangeOffset, regionLength) ->
+			storage.transferTo(storagePosition, regionLength, target));
+	}
+
+	@Override
+	public void sync() throws IOException {
+		lock.readLock().lock();
+		try {
+			for (final var storage : storages) {
+				if (storage != null) {
+					storage.sync();
+				}
+			}
+			if (parts != null) {
+				parts.sync();
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		lock.writeLock().lock();
+		try {
+			IOException failure = null;
+
+			for (var index = 0; index <= storages.length; index++) {
+				final var storage = index < storages.length ? storages[index] : parts;
+				if (storage == null) {
+					continue;
+				}
+
+				try {
+					storage.close();
+				} catch (IOException e) {
+					if (failure == null) {
+						failure = e;
+					}
+				}
+			}
+			Arrays.fill(storages, null);
+			parts = null;
+
+			if (failure != null) {
+				throw failure;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Runs {@code io} on each file region of a range, in order, opening what
+	 * the range needs first.
+	 */
+	private void forEachRegion(long position, int length, RegionIo io) throws IOException {
+		final var regions = regions(position, length);
+
+		while (true) {
+			lock.readLock().lock();
+			try {
+				if (isOpen(regions)) {
+					for (final var region : regions) {
+						if (inParts(region)) {
+							io.apply(parts, region.partsPosition(), region.rangeOffset(), region.length());
+						} else {
+							io.apply(storages[region.fileIndex()], region.fileOffset(), region.rangeOffset(), region.length());
+						}
+					}
+					return;
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+
+			open(regions);
+		}
+	}
+
+	private List<Region> regions(long position, int length) throws EOFException {
+		final List<FileLayout.Span> spans;
+		try {
+			spans = layout.spans(position, length);
+		} catch (IndexOutOfBoundsException e) {
+			throw new EOFException("%d bytes at %d are outside of %s".formatted(length, position, directory));
+		}
+
+		final var regions = new ArrayList<Region>(spans.size());
+		for (final var span : spans) {
+			final var index = span.fileIndex();
+			final var end = span.fileOffset() + span.length();
+
+			var offset = span.fileOffset();
+			while (offset < end) {
+				final long next;
+				final long partsPosition;
+				if (offset < headLength[index]) {
+					next = Math.min(end, headLength[index]);
+					partsPosition = partsOffset[index] + offset;
+				} else if (offset < tailStart[index]) {
+					next = Math.min(end, tailStart[index]);
+					partsPosition = -1;
+				} else {
+					next = end;
+					partsPosition = partsOffset[index] + headLength[index] + offset - tailStart[index];
+				}
+
+				regions.add(new Region(index, offset, span.rangeOffset() + (int) (offset - span.fileOffset()), (int) (next - offset), partsPosition));
+				offset = next;
+			}
+		}
+
+		return regions;
+	}
+
+	private boolean inParts(Region region) {
+		final var index = region.fileIndex();
+		return region.partsPosition() >= 0 && storages[index] == null && detached[index] && (skipped.get(index) || !writable);
+	}
+
+	private boolean isOpen(List<Region> regions) {
+		for (final var region : regions) {
+			if (inParts(region) ? parts == null : storages[region.fileIndex()] == null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void open(List<Region> regions) throws IOException {
+		lock.writeLock().lock();
+		try {
+			for (final var region : regions) {
+				if (inParts(region)) {
+					openParts();
+				} else if (storages[region.fileIndex()] == null) {
+					storages[region.fileIndex()] = openFile(region.fileIndex());
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private Storage openParts() throws IOException {
+		if (parts == null) {
+			parts = type.open(partsPath, partsSize, writable);
+		}
+		return parts;
+	}
+
+	private Storage openFile(int fileIndex) throws IOException {
+		final var file = layout.getFiles().get(fileIndex);
+		final var storage = type.open(pathOf(file), file.length(), writable);
+
+		// Take over the edges that were written while the file did not exist
+		if (writable && detached[fileIndex]) {
+			try {
+				if (parts != null || Files.exists(partsPath)) {
+					final var headLength = this.headLength[fileIndex];
+					final var tailLength = file.length() - tailStart[fileIndex];
+					if (headLength > 0) {
+						storage.write(0, openParts().read(partsOffset[fileIndex], (int) headLength));
+					}
+					if (tailLength > 0) {
+						storage.write(tailStart[fileIndex], openParts().read(partsOffset[fileIndex] + headLength, (int) tailLength));
+					}
+				}
+			} catch (IOException e) {
+				storage.close();
+				throw e;
+			}
+			detached[fileIndex] = false;
+		}
+
+		return storage;
+	}
+
+	/**
+	 * The parts file of the torrent kept in {@code directory}, next to it.
+	 */
+	public static Path partsPath(Path directory) {
+		final var absolute = directory.toAbsolutePath().normalize();
+		return absolute.resolveSibling(absolute.getFileName() + ".parts");
+	}
+
+	/**
+	 * @throws IOException if the file's path leads out of the directory
+	 */
+	private Path pathOf(TorrentFile file) throws IOException {
+		var path = directory;
+		for (final var segment : file.path()) {
+			path = path.resolve(segment);
+		}
+		path = path.normalize();
+
+		if (!path.startsWith(directory) || path.equals(directory)) {
+			throw new IOException("file path leads outside of the torrent directory: " + file.relativePath());
+		}
+
+		return path;
+	}
+
+}
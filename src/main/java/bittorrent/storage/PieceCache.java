@@ -0,0 +1,175 @@
+package bittorrent.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Whole pieces read for seeding, kept in direct buffers outside of the heap
+ * and evicted least recently used first once the cache is full. The first
+ * request for a block of a piece reads the whole piece in one go; the other
+ * blocks of the piece, and other peers asking for the same piece, are then
+ * served from memory.
+ * <p>
+ * Evicted buffers are not reused, so a block that is still being sent from
+ * one stays valid.
+ */
+public class PieceCache {
+
+	private static final PieceCache INSTANCE = new PieceCache();
+
+	public static PieceCache getInstance() {
+		return INSTANCE;
+	}
+
+	private record Key(String infoHashHex, int pieceIndex) {}
+
+	/**
+	 * Counters since startup, and the current size of the cache.
+	 */
+	public record Stats(long hits, long misses, long evictions, int pieces, long bytes, long capacity) {}
+
+	// Least recently used first; guarded by this
+	private final LinkedHashMap<Key, ByteBuffer> pieces = new LinkedHashMap<>(16, 0.75f, true);
+	private long bytes;
+
+	// Pieces being read, so that peers asking at the same time share one read
+	private final Map<Key, CompletableFuture<ByteBuffer>> loading = new ConcurrentHashMap<>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	private volatile long capacity;
+
+	private PieceCache() {
+	}
+
+	/**
+	 * @param capacity bytes of piece data to keep, or 0 to disable the cache
+	 */
+	public synchronized void setCapacity(long capacity) {
+		this.capacity = capacity;
+		evict();
+	}
+
+	public boolean isEnabled() {
+		return capacity > 0;
+	}
+
+	/**
+	 * A read-only view of a piece, or null if it is not cached.
+	 */
+	public synchronized ByteBuffer getIfCached(String infoHashHex, int pieceIndex) {
+		final var cached = pieces.get(new Key(infoHashHex.toLowerCase(), pieceIndex));
+		if (cached == null) {
+			return null;
+		}
+
+		hits.incrementAndGet();
+		return cached.duplicate();
+	}
+
+	/**
+	 * A read-only view of a piece, read from {@code storage} if it is not
+	 * cached.
+	 *
+	 * @param position start of the piece in the storage
+	 * @param length   size of the piece
+	 */
+	public ByteBuffer get(String infoHashHex, int pieceIndex, Storage storage, long position, int length) throws IOException {
+		final var key = new Key(infoHashHex.toLowerCase(), pieceIndex);
+
+		synchronized (this) {
+			final var cached = pieces.get(key);
+			if (cached != null) {
+				hits.incrementAndGet();
+				return cached.duplicate();
+			}
+		}
+
+		final var pending = new CompletableFuture<ByteBuffer>();
+		final var existing = loading.putIfAbsent(key, pending);
+		if (existing != null) {
+			hits.incrementAndGet();
+			return join(existing).duplicate();
+		}
+
+		misses.incrementAndGet();
+		try {
+			final var piece = ByteBuffer.allocateDirect(length);
+			storage.read(piece, position);
+			final var readOnly = piece.flip().asReadOnlyBuffer();
+
+			put(key, readOnly);
+			pending.complete(readOnly);
+			return readOnly.duplicate();
+		} catch (IOException | RuntimeException e) {
+			pending.completeExceptionally(e);
+			throw e;
+		} finally {
+			loading.remove(key);
+		}
+	}
+
+	/**
+	 * Drops every cached piece of a torrent, e.g. because its data file
+	 * changed.
+	 */
+	public synchronized void invalidate(String infoHashHex) {
+		final var normalized = infoHashHex.toLowerCase();
+
+		final Iterator<Map.Entry<Key, ByteBuffer>> iterator = pieces.entrySet().iterator();
+		while (iterator.hasNext()) {
+			final var entry = iterator.next();
+			if (entry.getKey().infoHashHex().equals(normalized)) {
+				bytes -= entry.getValue().capacity();
+				iterator.remove();
+			}
+		}
+	}
+
+	public synchronized Stats getStats() {
+		return new Stats(hits.get(), misses.get(), evictions.get(), pieces.size(), bytes, capacity);
+	}
+
+	private synchronized void put(Key key, ByteBuffer piece) {
+		if (piece.capacity() > capacity) {
+			return;
+		}
+
+		final var previous = pieces.put(key, piece);
+		bytes += piece.capacity() - (previous != null ? previous.capacity() : 0);
+		evict();
+	}
+
+	private void evict() {
+		final Iterator<ByteBuffer> iterator = pieces.values().iterator();
+		while (bytes > capacity && iterator.hasNext()) {
+			bytes -= iterator.next().capacity();
+			iterator.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	private static ByteBuffer join(CompletableFuture<ByteBuffer> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while waiting for a piece to be read", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException cause) {
+				throw cause;
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+}
@@ -0,0 +1,91 @@
+package bittorrent.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The data of a torrent as one range of bytes, read and written at absolute
+ * positions. Implementations are safe for concurrent use: there is no shared
+ * file pointer to race on.
+ */
+public interface Storage extends Closeable {
+
+	long size();
+
+	/**
+	 * Fills the remaining space of {@code destination} with the bytes starting
+	 * at {@code position}.
+	 *
+	 * @throws java.io.EOFException if the range ends past the end of the data
+	 */
+	void read(ByteBuffer destination, long position) throws IOException;
+
+	/**
+	 * Writes all remaining bytes of {@code source} starting at {@code position}.
+	 * A read-only source must not be modified afterwards through another
+	 * view, so that implementations may keep it instead of copying it.
+	 */
+	void write(ByteBuffer source, long position) throws IOException;
+
+	/**
+	 * Writes a read-only source whose memory is reused once {@code release}
+	 * has run. Implementations that keep the source override this to run it
+	 * when they no longer read the source; otherwise it runs once the write
+	 * returns.
+	 */
+	default void write(ByteBuffer source, long position, Runnable release) throws IOException {
+		try {
+			write(source, position);
+		} finally {
+			release.run();
+		}
+	}
+
+	/**
+	 * Writes all remaining bytes of {@code sources}, one after the other,
+	 * starting at {@code position}.
+	 */
+	default void write(ByteBuffer[] sources, long position) throws IOException {
+		for (final var source : sources) {
+			final var length = source.remaining();
+			write(source, position);
+			position += length;
+		}
+	}
+
+	/**
+	 * Makes the writes so far durable.
+	 */
+	void sync() throws IOException;
+
+	/**
+	 * Writes {@code length} bytes starting at {@code position} to a channel.
+	 * Implementations that can hand the bytes to the channel without copying
+	 * them through the heap override this.
+	 *
+	 * @throws java.io.EOFException if the range ends past the end of the data
+	 */
+	default void transferTo(long position, int length, WritableByteChannel target) throws IOException {
+		final var buffer = ByteBuffer.wrap(read(position, length));
+		while (buffer.hasRemaining()) {
+			target.write(buffer);
+		}
+	}
+
+	default byte[] read(long position, int length) throws IOException {
+		final var data = new byte[length];
+		read(ByteBuffer.wrap(data), position);
+		return data;
+	}
+
+	/**
+	 * Writes a whole array. The array must not be modified afterwards, so
+	 * that implementations may keep it instead of copying it.
+	 */
+	default void write(long position, byte[] data) throws IOException {
+		write(ByteBuffer.wrap(data), position);
+	}
+
+}
@@ -0,0 +1,271 @@
+package bittorrent.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bittorrent.BitTorrentApplication;
+import bittorrent.torrent.TorrentInfo;
+
+/**
+ * Keeps one open {@link Storage} per torrent, shared by the download and
+ * every connection uploading from it, so all piece I/O of a torrent goes
+ * through the same place.
+ * <p>
+ * Storages are reference counted, so one that is dropped while being read
+ * from is only closed by its last reader. The number of open files is
+ * bounded by the {@link FileChannelCache} below the storages.
+ */
+public class StorageManager {
+
+	private static final StorageManager INSTANCE = new StorageManager();
+
+	public static StorageManager getInstance() {
+		return INSTANCE;
+	}
+
+	private static final class OpenStorage {
+
+		private final File file;
+		private final Storage storage;
+		private final boolean writable;
+
+		// Below the write cache, if the data is split into files
+		private final MultiFileStorage files;
+
+		// Held by the map while the storage is in it, plus one per handle
+		private final AtomicInteger references = new AtomicInteger(1);
+
+		private OpenStorage(File file, Storage storage, boolean writable, MultiFileStorage files) {
+			this.file = file;
+			this.storage = storage;
+			this.writable = writable;
+			this.files = files;
+		}
+
+		/**
+		 * @return false if the storage was closed already
+		 */
+		private boolean retain() {
+			while (true) {
+				final var count = references.get();
+				if (count == 0) {
+					return false;
+				}
+				if (references.compareAndSet(count, count + 1)) {
+					return true;
+				}
+			}
+		}
+
+		private void release() {
+			if (references.decrementAndGet() == 0) {
+				try {
+					storage.close();
+				} catch (IOException e) {
+					if (BitTorrentApplication.DEBUG) {
+						System.err.println("Failed to close storage of " + file + ": " + e.getMessage());
+					}
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * A reference to an open storage; the storage stays open at least until
+	 * the handle is closed.
+	 */
+	public static final class Handle implements Closeable {
+
+		private final OpenStorage open;
+		private boolean closed;
+
+		private Handle(OpenStorage open) {
+			this.open = open;
+		}
+
+		public Storage storage() {
+			return open.storage;
+		}
+
+		@Override
+		public synchronized void close() {
+			if (!closed) {
+				closed = true;
+				open.release();
+			}
+		}
+
+	}
+
+	// Map<infoHashHex, OpenStorage>
+	private final Map<String, OpenStorage> storages = new ConcurrentHashMap<>();
+
+	// Map<infoHashHex, skipped file indexes> of multi-file torrents
+	private final Map<String, BitSet> skippedFiles = new ConcurrentHashMap<>();
+
+	private volatile StorageType type = StorageType.FILE;
+	private volatile long writeCacheSize;
+	private volatile long writeCacheFlushInterval;
+
+	private StorageManager() {
+	}
+
+	/**
+	 * Sets the implementation used for storages opened from now on.
+	 */
+	public void setType(StorageType type) {
+		this.type = type;
+	}
+
+	/**
+	 * Puts a {@link WriteBackCache} in front of storages opened for writing
+	 * from now on.
+	 *
+	 * @param size dirty bytes that trigger a flush, or 0 for no cache
+	 * @param flushIntervalMillis longest time data stays only in memory
+	 */
+	public void setWriteCache(long size, long flushIntervalMillis) {
+		this.writeCacheSize = size;
+		this.writeCacheFlushInterval = flushIntervalMillis;
+	}
+
+	/**
+	 * The storage of a torrent's data, opened for writing. A storage that was
+	 * only opened for reading is replaced. It stays open until
+	 * {@link #close(String)}.
+	 *
+	 * @param file the data file, or the directory of a multi-file torrent
+	 */
+	public synchronized Storage openForWriting(String infoHashHex, File file, TorrentInfo torrentInfo) throws IOException {
+		final var key = infoHashHex.toLowerCase();
+		final var open = storages.get(key);
+		if (open != null && open.writable && open.file.equals(file)) {
+			return open.storage;
+		}
+
+		final Storage opened = open(key, file, torrentInfo, true);
+		Storage storage = opened;
+		if (writeCacheSize > 0) {
+			storage = new WriteBackCache(storage, writeCacheSize, writeCacheFlushInterval);
+		}
+
+		return replace(key, new OpenStorage(file, storage, true, opened instanceof MultiFileStorage files ? files : null)).storage;
+	}
+
+	/**
+	 * A handle on the storage of a torrent's data, which is opened for reading
+	 * if it is not open yet. The handle must be closed after use.
+	 *
+	 * @param file the data file, or the directory of a multi-file torrent
+	 */
+	public Handle acquireForReading(String infoHashHex, File file, TorrentInfo torrentInfo) throws IOException {
+		final var key = infoHashHex.toLowerCase();
+
+		final var open = storages.get(key);
+		if (open != null && open.file.equals(file) && open.retain()) {
+			return new Handle(open);
+		}
+
+		synchronized (this) {
+			var current = storages.get(key);
+			if (current == null || !current.file.equals(file)) {
+				current = replace(key, new OpenStorage(file, open(key, file, torrentInfo, false), false, null));
+			}
+
+			// Only closed once removed from the map, which needs this lock
+			current.retain();
+			return new Handle(current);
+		}
+	}
+
+	/**
+	 * Sets the files of a multi-file torrent that are not downloaded, for its
+	 * storage and the ones opened for it later. See {@link MultiFileStorage}
+	 * for where their data on piece boundaries goes.
+	 */
+	public synchronized void setSkippedFiles(String infoHashHex, BitSet skipped) {
+		final var key = infoHashHex.toLowerCase();
+		skippedFiles.put(key, (BitSet) skipped.clone());
+
+		final var open = storages.get(key);
+		if (open != null && open.files != null) {
+			open.files.setSkippedFiles(skipped);
+		}
+	}
+
+	/**
+	 * Makes everything written to a torrent's storage durable, if it is open.
+	 */
+	public void sync(String infoHashHex) throws IOException {
+		final var open = storages.get(infoHashHex.toLowerCase());
+		if (open != null && open.retain()) {
+			try {
+				open.storage.sync();
+			} finally {
+				open.release();
+			}
+		}
+	}
+
+	/**
+	 * Closes a torrent's storage and drops its pieces from the
+	 * {@link PieceCache}.
+	 */
+	public synchronized void close(String infoHashHex) {
+		PieceCache.getInstance().invalidate(infoHashHex);
+		closeOpen(infoHashHex);
+	}
+
+	/**
+	 * Closes a torrent's storage and forgets its settings, for a torrent that
+	 * is removed.
+	 */
+	public synchronized void remove(String infoHashHex) {
+		close(infoHashHex);
+		skippedFiles.remove(infoHashHex.toLowerCase());
+	}
+
+	/**
+	 * Closes every storage, writing out whatever is still cached.
+	 */
+	public synchronized void closeAll() {
+		for (final var key : storages.keySet()) {
+			closeOpen(key);
+		}
+	}
+
+	private void closeOpen(String key) {
+		final var open = storages.remove(key.toLowerCase());
+		if (open != null) {
+			open.release();
+		}
+	}
+
+	private Storage open(String key, File file, TorrentInfo torrentInfo, boolean writable) throws IOException {
+		if (torrentInfo.isMultiFile()) {
+			return new MultiFileStorage(file.toPath(), torrentInfo.layout(), torrentInfo.pieceLength(), type, writable,
+				skippedFiles.getOrDefault(key, new BitSet()));
+		}
+
+		return type.open(file.toPath(), torrentInfo.length(), writable);
+	}
+
+	private OpenStorage replace(String key, OpenStorage open) {
+		final var previous = storages.put(key, open);
+		if (previous != null) {
+			if (!previous.file.equals(open.file)) {
+				PieceCache.getInstance().invalidate(key);
+			}
+			previous.release();
+		}
+
+		return open;
+	}
+
+}
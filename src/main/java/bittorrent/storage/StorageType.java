@@ -0,0 +1,25 @@
+package bittorrent.storage;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+public enum StorageType {
+
+	/** Positional reads and writes on a {@link java.nio.channels.FileChannel} */
+	FILE,
+
+	/** Memory-mapped file */
+	MMAP,
+
+	/** In memory only, nothing is written to disk */
+	MEMORY;
+
+	public Storage open(Path path, long size, boolean writable) throws IOException {
+		return switch (this) {
+			case FILE -> new FileStorage(path, size, writable);
+			case MMAP -> new MappedStorage(path, size, writable);
+			case MEMORY -> new MemoryStorage(size);
+		};
+	}
+
+}
@@ -0,0 +1,276 @@
+package bittorrent.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import bittorrent.BitTorrentApplication;
+
+/**
+ * Holds written data in memory and writes it to the underlying storage in
+ * batches: adjacent writes go out together as one gathering write, and the
+ * whole batch is made durable with a single sync.
+ * <p>
+ * Data is held in direct buffers. A read-only direct buffer is kept as it
+ * was written, other data is copied into one. A kept buffer written with a
+ * release hook is handed back once it has been flushed.
+ * <p>
+ * A batch is written once the dirty data reaches a size, after a time, and
+ * on {@link #sync()} and {@link #close()}. Reads see the cached data before
+ * it reaches the underlying storage.
+ */
+public class WriteBackCache implements Storage {
+
+	// Most entries gathered into a single write
+	private static final int MAX_GATHERED_ENTRIES = 1024;
+
+	private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		final var thread = new Thread(runnable);
+		thread.setName("WriteBackCache-Flusher");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final Storage storage;
+	private final long maxDirtyBytes;
+	private final ScheduledFuture<?> flushTask;
+
+	// Map<position, data>, written but not yet flushed; guarded by this
+	private final TreeMap<Long, ByteBuffer> dirty = new TreeMap<>();
+	private long dirtyBytes;
+
+	// Map<dirty entry, hook handing its memory back>; guarded by this
+	private final Map<ByteBuffer, Runnable> releases = new IdentityHashMap<>();
+
+	// Held while a batch is being written, so batches go out one at a time
+	private final Object flushLock = new Object();
+
+	/**
+	 * @param maxDirtyBytes dirty data that triggers a flush
+	 * @param flushIntervalMillis longest time data stays only in memory, or 0
+	 *        to only flush on size, sync and close
+	 */
+	public WriteBackCache(Storage storage, long maxDirtyBytes, long flushIntervalMillis) {
+		this.storage = storage;
+		this.maxDirtyBytes = maxDirtyBytes;
+		this.flushTask = flushIntervalMillis > 0
+			? FLUSHER.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS)
+			: null;
+	}
+
+	@Override
+	public long size() {
+		return storage.size();
+	}
+
+	@Override
+	public void read(ByteBuffer destination, long position) throws IOException {
+		final var length = destination.remaining();
+		final var start = destination.position();
+
+		// Taken before reading the storage: anything flushed after this is
+		// still in the snapshot, anything flushed before is in the storage
+		final var overlapping = overlapping(position, length);
+
+		storage.read(destination, position);
+
+		for (final var entry : overlapping) {
+			final long overlapStart = Math.max(position, entry.getKey());
+			final long overlapEnd = Math.min(position + length, entry.getKey() + entry.getValue().remaining());
+			final int offset = start + (int) (overlapStart - position);
+			final int overlapLength = (int) (overlapEnd - overlapStart);
+
+			// An entry that is no longer dirty may have been handed back, so
+			// its range is read again instead
+			synchronized (this) {
+				if (dirty.get(entry.getKey()) == entry.getValue()) {
+					destination.put(offset, entry.getValue(), (int) (overlapStart - entry.getKey()), overlapLength);
+					continue;
+				}
+			}
+
+			read(destination.slice(offset, overlapLength), overlapStart);
+		}
+	}
+
+	/**
+	 * Transfers straight from the underlying storage unless part of the range
+	 * is only cached.
+	 */
+	@Override
+	public void transferTo(long position, int length, WritableByteChannel target) throws IOException {
+		if (!overlapping(position, length).isEmpty()) {
+			Storage.super.transferTo(position, length, target);
+			return;
+		}
+
+		// Pieces are written once, so what is not cached is in the storage
+		storage.transferTo(position, length, target);
+	}
+
+	@Override
+	public void write(ByteBuffer source, long position) throws IOException {
+		write(source, position, null);
+	}
+
+	/**
+	 * Keeps a read-only direct source until it has been flushed, and only
+	 * runs {@code release} then.
+	 */
+	@Override
+	public void write(ByteBuffer source, long position, Runnable release) throws IOException {
+		final ByteBuffer data;
+		final boolean kept = source.isDirect() && source.isReadOnly();
+		if (kept) {
+			data = source.slice();
+		} else {
+			data = ByteBuffer.allocateDirect(source.remaining()).put(source.duplicate()).flip().asReadOnlyBuffer();
+		}
+		source.position(source.limit());
+
+		if (!kept && release != null) {
+			release.run();
+		}
+
+		final boolean full;
+		synchronized (this) {
+			final var previous = dirty.put(position, data);
+			dirtyBytes += data.remaining() - (previous != null ? previous.remaining() : 0);
+			full = dirtyBytes >= maxDirtyBytes;
+
+			// A replaced entry is never handed back: a flush may still be
+			// writing it
+			if (previous != null) {
+				releases.remove(previous);
+			}
+			if (kept && release != null) {
+				releases.put(data, release);
+			}
+		}
+
+		if (full) {
+			flush();
+		}
+	}
+
+	/**
+	 * Writes every dirty byte to the underlying storage and syncs it once.
+	 */
+	@Override
+	public void sync() throws IOException {
+		flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (flushTask != null) {
+			flushTask.cancel(false);
+		}
+
+		try {
+			flush();
+		} finally {
+			storage.close();
+		}
+	}
+
+	private void flush() throws IOException {
+		synchronized (flushLock) {
+			final TreeMap<Long, ByteBuffer> batch;
+			synchronized (this) {
+				batch = new TreeMap<>(dirty);
+			}
+
+			// Runs of adjacent entries go out as one write each
+			final var run = new ArrayList<ByteBuffer>();
+			long runStart = -1;
+			long runEnd = -1;
+
+			for (final var entry : batch.entrySet()) {
+				if (entry.getKey() != runEnd || run.size() == MAX_GATHERED_ENTRIES) {
+					writeRun(run, runStart);
+					runStart = entry.getKey();
+					runEnd = runStart;
+				}
+
+				run.add(entry.getValue().duplicate());
+				runEnd += entry.getValue().remaining();
+			}
+			writeRun(run, runStart);
+
+			storage.sync();
+
+			// Entries replaced meanwhile are newer than what was written
+			final var flushed = new ArrayList<Runnable>();
+			synchronized (this) {
+				for (final var entry : batch.entrySet()) {
+					if (dirty.remove(entry.getKey(), entry.getValue())) {
+						dirtyBytes -= entry.getValue().remaining();
+
+						final var release = releases.remove(entry.getValue());
+						if (release != null) {
+							flushed.add(release);
+						}
+					}
+				}
+			}
+
+			// Readers only copy entries that are still dirty, so nothing
+			// reads these any more
+			flushed.forEach(Runnable::run);
+		}
+	}
+
+	/**
+	 * Writes a run of adjacent entries and empties it.
+	 */
+	private void writeRun(List<ByteBuffer> run, long position) throws IOException {
+		if (run.isEmpty()) {
+			return;
+		}
+
+		if (run.size() == 1) {
+			storage.write(run.get(0), position);
+		} else {
+			storage.write(run.toArray(ByteBuffer[]::new), position);
+		}
+		run.clear();
+	}
+
+	private synchronized List<Map.Entry<Long, ByteBuffer>> overlapping(long position, int length) {
+		final List<Map.Entry<Long, ByteBuffer>> overlapping = new ArrayList<>();
+
+		final var from = dirty.floorKey(position);
+		for (final var entry : dirty.tailMap(from != null ? from : position).entrySet()) {
+			if (entry.getKey() >= position + length) {
+				break;
+			}
+			if (entry.getKey() + entry.getValue().remaining() > position) {
+				overlapping.add(Map.entry(entry.getKey(), entry.getValue()));
+			}
+		}
+
+		return overlapping;
+	}
+
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch (IOException e) {
+			System.err.println("Failed to flush write-back cache: " + e.getMessage());
+			if (BitTorrentApplication.DEBUG) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+}
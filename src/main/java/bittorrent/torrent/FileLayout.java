@@ -0,0 +1,101 @@
+package bittorrent.torrent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maps a range of a torrent's data to the parts of the files holding it. A
+ * piece, or even a block, may span several files.
+ */
+public class FileLayout {
+
+	/**
+	 * Part of a range that falls into one file.
+	 *
+	 * @param fileIndex    index of the file in the torrent
+	 * @param fileOffset   start of the part within the file
+	 * @param rangeOffset  start of the part within the range
+	 * @param length       size of the part
+	 */
+	public record Span(
+		int fileIndex,
+		long fileOffset,
+		int rangeOffset,
+		int length
+	) {}
+
+	private final List<TorrentFile> files;
+	private final long[] offsets;
+	private final long length;
+
+	public FileLayout(List<TorrentFile> files) {
+		this.files = List.copyOf(files);
+		this.offsets = new long[files.size()];
+
+		var offset = 0L;
+		for (var index = 0; index < files.size(); index++) {
+			offsets[index] = offset;
+			offset += files.get(index).length();
+		}
+		this.length = offset;
+	}
+
+	public List<TorrentFile> getFiles() {
+		return files;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * The parts of {@code [position, position + length)} in each file, in
+	 * order. Empty files never hold any part.
+	 *
+	 * @throws IndexOutOfBoundsException if the range ends past the end of the
+	 *         data
+	 */
+	public List<Span> spans(long position, int length) {
+		if (position < 0 || length < 0 || position + length > this.length) {
+			throw new IndexOutOfBoundsException("%d bytes at %d are outside of %d bytes".formatted(length, position, this.length));
+		}
+
+		final var spans = new ArrayList<Span>();
+		var rangeOffset = 0;
+		for (var index = fileAt(position); rangeOffset < length; index++) {
+			final var fileOffset = position + rangeOffset - offsets[index];
+			final var fileLength = files.get(index).length();
+			if (fileOffset >= fileLength) {
+				continue;
+			}
+
+			final var spanLength = (int) Math.min(length - rangeOffset, fileLength - fileOffset);
+			spans.add(new Span(index, fileOffset, rangeOffset, spanLength));
+			rangeOffset += spanLength;
+		}
+
+		return spans;
+	}
+
+	/**
+	 * Index of the file that holds {@code position}: the last file starting
+	 * at or before it. Empty files share their offset with the next file, so
+	 * they are never the last one.
+	 */
+	public int fileAt(long position) {
+		var low = 0;
+		var high = offsets.length - 1;
+
+		while (low < high) {
+			final var middle = (low + high + 1) >>> 1;
+			if (offsets[middle] <= position) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+
+		return low;
+	}
+
+}
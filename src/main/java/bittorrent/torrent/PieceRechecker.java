@@ -0,0 +1,228 @@
+package bittorrent.torrent;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bittorrent.storage.FileStorage;
+import bittorrent.storage.MultiFileStorage;
+import bittorrent.storage.Storage;
+import bittorrent.storage.StorageType;
+import bittorrent.util.DigestUtils;
+
+/**
+ * Hashes every piece of a torrent's data to find out which ones are intact.
+ * <p>
+ * The data is read in windows of whole pieces which are hashed in parallel.
+ * Windows are not memory-mapped: a mapping is only released by the garbage
+ * collector, so mapping a large torrent kept gigabytes mapped. Each window is
+ * instead read with positional reads into one of a few direct buffers that
+ * are reused from window to window.
+ * <p>
+ * Only a limited number of windows are read from disk at the same time, so
+ * that many hashing threads do not turn a sequential read into random seeks;
+ * hashing a window that is already in memory is not limited. Windows are
+ * submitted as earlier ones finish, so only a few are queued at any time.
+ * <p>
+ * Multi-file data is read like a download writes it, so the edges of skipped
+ * files are read from the parts file.
+ */
+public class PieceRechecker {
+
+	public static final long DEFAULT_WINDOW_BYTES = 4L * 1024 * 1024;
+	public static final int DEFAULT_IO_CONCURRENCY = 2;
+
+	@FunctionalInterface
+	public interface ProgressListener {
+
+		/**
+		 * Called from the hashing threads after each window.
+		 */
+		void onProgress(int checkedPieces, int verifiedPieces);
+
+	}
+
+	private final int threadCount;
+	private final int ioConcurrency;
+	private final long windowBytes;
+
+	public PieceRechecker() {
+		this(0, DEFAULT_IO_CONCURRENCY, DEFAULT_WINDOW_BYTES);
+	}
+
+	/**
+	 * @param threadCount hashing threads, or 0 for one per core
+	 * @param ioConcurrency windows read from disk at the same time
+	 * @param windowBytes size of a window, rounded down to whole pieces
+	 */
+	public PieceRechecker(int threadCount, int ioConcurrency, long windowBytes) {
+		this.threadCount = threadCount > 0 ? threadCount : Runtime.getRuntime().availableProcessors();
+		this.ioConcurrency = Math.max(1, ioConcurrency);
+		this.windowBytes = windowBytes;
+	}
+
+	/**
+	 * @param file the data file, or the directory of a multi-file torrent
+	 * @return the pieces whose data matches their hash; pieces in files that
+	 *         are missing or too short are missing
+	 */
+	public BitSet recheck(File file, TorrentInfo torrentInfo, ProgressListener listener) throws IOException, InterruptedException {
+		final int pieceCount = torrentInfo.pieces().size();
+		final int pieceLength = torrentInfo.pieceLength();
+		// A single buffer cannot exceed 2 GiB
+		final int windowPieces = (int) Math.clamp(windowBytes / pieceLength, 1, Integer.MAX_VALUE / pieceLength);
+
+		final BitSet verified = new BitSet(pieceCount);
+		if (!torrentInfo.isMultiFile() && !Files.isRegularFile(file.toPath())) {
+			return verified;
+		}
+
+		final AtomicInteger checkedCount = new AtomicInteger();
+		final AtomicInteger verifiedCount = new AtomicInteger();
+		final Semaphore ioPermits = new Semaphore(ioConcurrency);
+
+		// One buffer per hashing thread, allocated when first needed
+		final int windowLength = (int) Math.min((long) windowPieces * pieceLength, torrentInfo.length());
+		final BlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<>(threadCount);
+		final AtomicInteger allocated = new AtomicInteger();
+
+		final var threadNumber = new AtomicInteger();
+		final ExecutorService executor = Executors.newFixedThreadPool(threadCount, runnable -> {
+			final var thread = new Thread(runnable);
+			thread.setName("PieceRechecker-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		try (Storage storage = open(file, torrentInfo)) {
+			// Oldest first; each thread has one window running and one waiting
+			final Deque<Future<?>> windows = new ArrayDeque<>();
+
+			for (int firstPiece = 0; firstPiece < pieceCount; firstPiece += windowPieces) {
+				final int lastPiece = Math.min(firstPiece + windowPieces, pieceCount) - 1;
+				final int first = firstPiece;
+
+				if (windows.size() >= 2 * threadCount) {
+					await(windows.poll(), file);
+				}
+
+				windows.add(executor.submit(() -> {
+					var buffer = buffers.poll();
+					if (buffer == null) {
+						buffer = allocated.getAndIncrement() < threadCount ? ByteBuffer.allocateDirect(windowLength) : buffers.take();
+					}
+
+					final int found;
+					try {
+						found = checkWindow(storage, torrentInfo, first, lastPiece, buffer, ioPermits, verified);
+					} finally {
+						buffers.add(buffer);
+					}
+
+					final int checked = checkedCount.addAndGet(lastPiece - first + 1);
+					final int total = verifiedCount.addAndGet(found);
+					if (listener != null) {
+						listener.onProgress(checked, total);
+					}
+					return null;
+				}));
+			}
+
+			while (!windows.isEmpty()) {
+				await(windows.poll(), file);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		return verified;
+	}
+
+	private static void await(Future<?> window, File file) throws IOException, InterruptedException {
+		try {
+			window.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException ioException) {
+				throw ioException;
+			}
+			throw new IOException("Recheck of " + file + " failed", e.getCause());
+		}
+	}
+
+	private static Storage open(File file, TorrentInfo torrentInfo) throws IOException {
+		if (torrentInfo.isMultiFile()) {
+			return new MultiFileStorage(file.toPath(), torrentInfo.layout(), torrentInfo.pieceLength(), StorageType.FILE, false, new BitSet());
+		}
+		return new FileStorage(file.toPath(), torrentInfo.length(), false);
+	}
+
+	/**
+	 * @return how many pieces of the window verified
+	 */
+	private static int checkWindow(Storage storage, TorrentInfo torrentInfo, int firstPiece, int lastPiece, ByteBuffer buffer, Semaphore ioPermits, BitSet verified) throws IOException, InterruptedException {
+		final long pieceLength = torrentInfo.pieceLength();
+		final long windowStart = firstPiece * pieceLength;
+		final long windowEnd = Math.min((lastPiece + 1) * pieceLength, torrentInfo.length());
+
+		if (windowEnd <= windowStart) {
+			return 0;
+		}
+
+		// Read the whole window from disk, then hash from memory
+		final var window = buffer.clear().limit((int) (windowEnd - windowStart));
+		final boolean complete = read(storage, window, windowStart, ioPermits);
+
+		var found = 0;
+		for (int pieceIndex = firstPiece; pieceIndex <= lastPiece; pieceIndex++) {
+			final long pieceStart = pieceIndex * pieceLength;
+			final int length = (int) (Math.min(pieceStart + pieceLength, windowEnd) - pieceStart);
+			final var piece = window.slice((int) (pieceStart - windowStart), length);
+
+			// Part of the window is missing, so each piece is read on its own
+			if (!complete && !read(storage, piece.duplicate(), pieceStart, ioPermits)) {
+				continue;
+			}
+
+			if (Arrays.equals(DigestUtils.sha1(piece), torrentInfo.pieces().get(pieceIndex))) {
+				synchronized (verified) {
+					verified.set(pieceIndex);
+				}
+				++found;
+			}
+		}
+
+		return found;
+	}
+
+	/**
+	 * @return false if the range is (partly) in a file that is missing or too
+	 *         short
+	 */
+	private static boolean read(Storage storage, ByteBuffer destination, long position, Semaphore ioPermits) throws IOException, InterruptedException {
+		ioPermits.acquire();
+		try {
+			storage.read(destination, position);
+			return true;
+		} catch (EOFException | NoSuchFileException e) {
+			return false;
+		} finally {
+			ioPermits.release();
+		}
+	}
+
+}
@@ -0,0 +1,284 @@
+package bittorrent.torrent;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Stream;
+
+import bittorrent.util.DigestUtils;
+
+/**
+ * Builds the info dictionary of a new torrent from a file or a directory.
+ * <p>
+ * Pieces are read with positional reads, so any number of them can be read
+ * at the same time, and hashed in parallel on a fork-join pool. Unless given,
+ * the piece length is chosen from the total size so that large torrents do
+ * not end up with hundreds of thousands of pieces.
+ */
+public class TorrentCreator {
+
+	public static final int MIN_PIECE_LENGTH = 16 * 1024;
+	public static final int MAX_PIECE_LENGTH = 16 * 1024 * 1024;
+
+	// Piece count the automatic piece length aims for
+	private static final long TARGET_PIECE_COUNT = 1500;
+
+	// Pieces hashed by one fork-join task without splitting further
+	private static final int PIECES_PER_TASK = 8;
+
+	private final int parallelism;
+
+	public TorrentCreator() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public TorrentCreator(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * The largest power of two that still gives at least
+	 * {@value #TARGET_PIECE_COUNT} pieces, within {@link #MIN_PIECE_LENGTH}
+	 * and {@link #MAX_PIECE_LENGTH}.
+	 */
+	public static int pieceLengthFor(long totalLength) {
+		final long ideal = Math.max(1, totalLength / TARGET_PIECE_COUNT);
+		final long pieceLength = Long.highestOneBit(ideal);
+
+		return (int) Math.clamp(pieceLength, MIN_PIECE_LENGTH, MAX_PIECE_LENGTH);
+	}
+
+	/**
+	 * Hashes {@code input} and returns its info dictionary: single-file for a
+	 * file, multi-file for a directory (every regular file below it, sorted
+	 * by path).
+	 *
+	 * @param pieceLength bytes per piece, or 0 to choose from the size
+	 */
+	public Map<String, Object> createInfo(Path input, int pieceLength) throws IOException {
+		if (!Files.exists(input)) {
+			throw new IOException("Input does not exist: " + input);
+		}
+
+		final var entries = listFiles(input);
+		final long totalLength = entries.stream().mapToLong(FileEntry::length).sum();
+		if (pieceLength <= 0) {
+			pieceLength = pieceLengthFor(totalLength);
+		}
+
+		final var pieces = hashPieces(entries, totalLength, pieceLength);
+
+		final Map<String, Object> info = new TreeMap<>();
+		info.put("name", input.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+		info.put("piece length", (long) pieceLength);
+		info.put("pieces", pieces);
+
+		if (Files.isDirectory(input)) {
+			final List<Object> files = new ArrayList<>();
+			for (final var entry : entries) {
+				final List<Object> path = new ArrayList<>();
+				for (final var component : input.relativize(entry.path())) {
+					path.add(component.toString().getBytes(StandardCharsets.UTF_8));
+				}
+
+				final Map<String, Object> file = new TreeMap<>();
+				file.put("length", entry.length());
+				file.put("path", path);
+				files.add(file);
+			}
+			info.put("files", files);
+		} else {
+			info.put("length", totalLength);
+		}
+
+		return info;
+	}
+
+	private static List<FileEntry> listFiles(Path input) throws IOException {
+		if (!Files.isDirectory(input)) {
+			return List.of(new FileEntry(input, 0, Files.size(input)));
+		}
+
+		final List<Path> paths;
+		try (Stream<Path> walk = Files.walk(input)) {
+			paths = walk.filter(Files::isRegularFile).sorted().toList();
+		}
+
+		if (paths.isEmpty()) {
+			throw new IOException("Directory contains no files: " + input);
+		}
+
+		final List<FileEntry> entries = new ArrayList<>(paths.size());
+		long offset = 0;
+		for (final var path : paths) {
+			final long length = Files.size(path);
+			entries.add(new FileEntry(path, offset, length));
+			offset += length;
+		}
+
+		return entries;
+	}
+
+	private byte[] hashPieces(List<FileEntry> entries, long totalLength, int pieceLength) throws IOException {
+		final int pieceCount = (int) Math.max(1, (totalLength + pieceLength - 1) / pieceLength);
+		final byte[] pieces = new byte[pieceCount * 20];
+
+		final var pool = new ForkJoinPool(parallelism);
+		try {
+			pool.invoke(new HashTask(entries, totalLength, pieceLength, pieces, 0, pieceCount));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			pool.shutdown();
+		}
+
+		return pieces;
+	}
+
+	private record FileEntry(Path path, long offset, long length) {}
+
+	@SuppressWarnings("serial")
+	private static class HashTask extends RecursiveAction {
+
+		private final List<FileEntry> entries;
+		private final long totalLength;
+		private final int pieceLength;
+		private final byte[] pieces;
+		private final int firstPiece;
+		private final int endPiece;
+
+		HashTask(List<FileEntry> entries, long totalLength, int pieceLength, byte[] pieces, int firstPiece, int endPiece) {
+			this.entries = entries;
+			this.totalLength = totalLength;
+			this.pieceLength = pieceLength;
+			this.pieces = pieces;
+			this.firstPiece = firstPiece;
+			this.endPiece = endPiece;
+		}
+
+		@Override
+		protected void compute() {
+			if (endPiece - firstPiece > PIECES_PER_TASK) {
+				final int middle = (firstPiece + endPiece) >>> 1;
+				invokeAll(
+					new HashTask(entries, totalLength, pieceLength, pieces, firstPiece, middle),
+					new HashTask(entries, totalLength, pieceLength, pieces, middle, endPiece)
+				);
+				return;
+			}
+
+			final var buffer = ByteBuffer.allocate(pieceLength);
+			final var reader = new SpanReader(entries);
+			try (reader) {
+				for (int pieceIndex = firstPiece; pieceIndex < endPiece; pieceIndex++) {
+					final long start = (long) pieceIndex * pieceLength;
+					final int size = (int) Math.min(pieceLength, totalLength - start);
+
+					buffer.clear().limit(size);
+					reader.read(buffer, start);
+					buffer.flip();
+
+					System.arraycopy(DigestUtils.sha1(buffer), 0, pieces, pieceIndex * 20, 20);
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+	}
+
+	/**
+	 * Reads byte ranges of the concatenated files, keeping the file last read
+	 * from open since a task reads consecutive pieces.
+	 */
+	private static class SpanReader implements AutoCloseable {
+
+		private final List<FileEntry> entries;
+		private int openIndex = -1;
+		private FileChannel channel;
+
+		SpanReader(List<FileEntry> entries) {
+			this.entries = entries;
+		}
+
+		void read(ByteBuffer buffer, long position) throws IOException {
+			int index = findEntry(position);
+
+			while (buffer.hasRemaining()) {
+				final var entry = entries.get(index);
+				final long offset = position - entry.offset();
+
+				if (offset >= entry.length()) {
+					++index;
+					if (index >= entries.size()) {
+						throw new IOException("Unexpected end of input at " + position);
+					}
+					continue;
+				}
+
+				final int toRead = (int) Math.min(buffer.remaining(), entry.length() - offset);
+				final int limit = buffer.limit();
+				buffer.limit(buffer.position() + toRead);
+
+				final var fileChannel = open(index);
+				while (buffer.hasRemaining()) {
+					final int read = fileChannel.read(buffer, offset + (toRead - buffer.remaining()));
+					if (read < 0) {
+						throw new IOException("File changed while hashing: " + entry.path());
+					}
+				}
+
+				buffer.limit(limit);
+				position += toRead;
+			}
+		}
+
+		private int findEntry(long position) {
+			var low = 0;
+			var high = entries.size() - 1;
+
+			while (low < high) {
+				final int middle = (low + high + 1) >>> 1;
+				if (entries.get(middle).offset() <= position) {
+					low = middle;
+				} else {
+					high = middle - 1;
+				}
+			}
+
+			return low;
+		}
+
+		private FileChannel open(int index) throws IOException {
+			if (index != openIndex) {
+				close();
+				channel = FileChannel.open(entries.get(index).path(), StandardOpenOption.READ);
+				openIndex = index;
+			}
+
+			return channel;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (channel != null) {
+				channel.close();
+				channel = null;
+				openIndex = -1;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,23 @@
+package bittorrent.torrent;
+
+import java.util.List;
+
+/**
+ * A file of a multi-file torrent.
+ *
+ * @param path   path segments below the torrent's directory
+ * @param length size in bytes
+ * @param offset position of the file's first byte in the torrent's data,
+ *               where the files are laid end to end
+ */
+public record TorrentFile(
+	List<String> path,
+	long length,
+	long offset
+) {
+
+	public String relativePath() {
+		return String.join("/", path);
+	}
+
+}
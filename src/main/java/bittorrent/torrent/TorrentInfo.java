@@ -8,27 +8,60 @@ import java.util.Map;
 
 import bittorrent.util.DigestUtils;
 
+/**
+ * @param files the files of a multi-file torrent, in the order their data is
+ *              laid out; empty in single-file mode
+ */
 public record TorrentInfo(
 	byte[] hash,
 	long length,
 	String name,
 	int pieceLength,
-	List<byte[]> pieces
+	List<byte[]> pieces,
+	List<TorrentFile> files
 ) {
 
+	public TorrentInfo(byte[] hash, long length, String name, int pieceLength, List<byte[]> pieces) {
+		this(hash, length, name, pieceLength, pieces, List.of());
+	}
+
+	/**
+	 * Whether the data is stored as files in a directory called
+	 * {@link #name()}, rather than as a single file.
+	 */
+	public boolean isMultiFile() {
+		return !files.isEmpty();
+	}
+
+	/**
+	 * Where each byte of the data is stored. A single-file torrent has one
+	 * file, named after the torrent.
+	 */
+	public FileLayout layout() {
+		return new FileLayout(isMultiFile() ? files : List.of(new TorrentFile(List.of(name), length, 0)));
+	}
+
+	@SuppressWarnings("unchecked")
 	public static TorrentInfo of(Map<String, Object> root) {
 		final var hash = DigestUtils.shaInfo(root);
 		final long length;
+		final var files = new ArrayList<TorrentFile>();
 		if (root.containsKey("length")) {
 			// Single-file mode
 			length = (long) root.get("length");
 		} else {
-			// Multi-file mode: sum lengths of all files
-			@SuppressWarnings("unchecked")
-			final var files = (List<Map<String, Object>>) root.get("files");
-			length = files.stream()
-				.mapToLong(file -> (long) file.get("length"))
-				.sum();
+			// Multi-file mode: files are laid end to end in list order
+			var offset = 0L;
+			for (final var file : (List<Map<String, Object>>) root.get("files")) {
+				final var fileLength = (long) file.get("length");
+				// Strings are decoded byte for byte; paths are UTF-8
+				final var path = ((List<String>) file.get("path")).stream()
+					.map(segment -> new String(segment.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8))
+					.toList();
+				files.add(new TorrentFile(path, fileLength, offset));
+				offset += fileLength;
+			}
+			length = offset;
 		}
 		final var name = (String) root.get("name");
 		final var pieceLength = (int) (long) root.get("piece length");
@@ -40,7 +73,7 @@ public record TorrentInfo(
 			pieces.add(piece);
 		}
 
-		return new TorrentInfo(hash, length, name, pieceLength, pieces);
+		return new TorrentInfo(hash, length, name, pieceLength, pieces, List.copyOf(files));
 	}
 
-}
\ No newline at end of file
+}
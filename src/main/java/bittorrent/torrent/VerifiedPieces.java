@@ -0,0 +1,201 @@
+package bittorrent.torrent;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import bittorrent.BitTorrentApplication;
+
+/**
+ * The pieces of a torrent that have been checked against their hash, shared
+ * by every connection for the torrent. A piece is added once, when it
+ * verifies; connections only read the set.
+ */
+public class VerifiedPieces {
+
+	// Map<infoHashHex, VerifiedPieces>
+	private static final Map<String, VerifiedPieces> TORRENTS = new ConcurrentHashMap<>();
+
+	public static VerifiedPieces forTorrent(String infoHashHex, int pieceCount) {
+		return TORRENTS.computeIfAbsent(infoHashHex.toLowerCase(), k -> new VerifiedPieces(pieceCount));
+	}
+
+	/**
+	 * Forgets a torrent that is no longer downloaded or seeded.
+	 */
+	public static void remove(String infoHashHex) {
+		TORRENTS.remove(infoHashHex.toLowerCase());
+	}
+
+	private final int pieceCount;
+	private final BitSet pieces;
+	private int count;
+
+	// Whether the data file has been scanned (or is known to hold nothing)
+	private boolean loaded;
+	private final Object loadLock = new Object();
+
+	private VerifiedPieces(int pieceCount) {
+		this.pieceCount = pieceCount;
+		this.pieces = new BitSet(pieceCount);
+	}
+
+	/**
+	 * @return {@code true} if the piece was not verified before
+	 */
+	public synchronized boolean add(int pieceIndex) {
+		if (pieces.get(pieceIndex)) {
+			return false;
+		}
+
+		pieces.set(pieceIndex);
+		++count;
+		return true;
+	}
+
+	public synchronized void addAll() {
+		pieces.set(0, pieceCount);
+		count = pieceCount;
+	}
+
+	public synchronized boolean contains(int pieceIndex) {
+		return pieces.get(pieceIndex);
+	}
+
+	public synchronized int count() {
+		return count;
+	}
+
+	public synchronized boolean isComplete() {
+		return count == pieceCount;
+	}
+
+	public synchronized BitSet snapshot() {
+		return (BitSet) pieces.clone();
+	}
+
+	/**
+	 * Clears every verified piece from {@code other}.
+	 */
+	public synchronized void removeFrom(BitSet other) {
+		other.andNot(pieces);
+	}
+
+	/**
+	 * The set in wire format: one bit per piece, most significant bit first.
+	 */
+	public synchronized byte[] toBitfield() {
+		final var bitfield = new byte[(pieceCount + 7) / 8];
+
+		for (var pieceIndex = pieces.nextSetBit(0); pieceIndex >= 0; pieceIndex = pieces.nextSetBit(pieceIndex + 1)) {
+			bitfield[pieceIndex / 8] |= (byte) (0x80 >>> (pieceIndex % 8));
+		}
+
+		return bitfield;
+	}
+
+	/**
+	 * Forgets every piece, e.g. because the torrent now points to another
+	 * data file.
+	 */
+	public void reset() {
+		synchronized (loadLock) {
+			synchronized (this) {
+				pieces.clear();
+				count = 0;
+				loaded = false;
+			}
+		}
+	}
+
+	/**
+	 * Records that the set is up to date with the data file, so that it will
+	 * not be scanned.
+	 */
+	public synchronized void markLoaded() {
+		loaded = true;
+	}
+
+	/**
+	 * Takes the verified pieces from a saved record instead of scanning the
+	 * data file.
+	 *
+	 * @return {@code false} if the set was already loaded
+	 */
+	public boolean loadFrom(BitSet saved) {
+		synchronized (loadLock) {
+			synchronized (this) {
+				if (loaded) {
+					return false;
+				}
+
+				for (var pieceIndex = saved.nextSetBit(0); pieceIndex >= 0 && pieceIndex < pieceCount; pieceIndex = saved.nextSetBit(pieceIndex + 1)) {
+					if (!pieces.get(pieceIndex)) {
+						pieces.set(pieceIndex);
+						++count;
+					}
+				}
+				loaded = true;
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Hashes the pieces already in {@code file} the first time it is called.
+	 * Later calls return immediately.
+	 */
+	public void loadOnce(File file, TorrentInfo torrentInfo) {
+		synchronized (loadLock) {
+			synchronized (this) {
+				if (loaded) {
+					return;
+				}
+			}
+
+			if (file != null && file.exists()) {
+				scan(file, torrentInfo);
+			}
+
+			synchronized (this) {
+				loaded = true;
+			}
+		}
+	}
+
+	/**
+	 * Replaces the set with the result of a full recheck of the data file.
+	 */
+	public void replace(BitSet verified) {
+		synchronized (loadLock) {
+			synchronized (this) {
+				pieces.clear();
+				pieces.or(verified);
+				if (pieces.length() > pieceCount) {
+					pieces.clear(pieceCount, pieces.length());
+				}
+				count = pieces.cardinality();
+				loaded = true;
+			}
+		}
+	}
+
+	private void scan(File file, TorrentInfo torrentInfo) {
+		try {
+			final var verified = new PieceRechecker().recheck(file, torrentInfo, null);
+			synchronized (this) {
+				pieces.or(verified);
+				count = pieces.cardinality();
+			}
+		} catch (IOException e) {
+			if (BitTorrentApplication.DEBUG) {
+				System.err.println("Could not scan " + file + " for verified pieces: " + e.getMessage());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
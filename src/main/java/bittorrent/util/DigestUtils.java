@@ -2,8 +2,10 @@ package bittorrent.util;
 
 import java.io.ByteArrayOutputStream;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
+import java.util.List;
 
 import bittorrent.bencode.BencodeSerializer;
 import lombok.SneakyThrows;
@@ -21,6 +23,33 @@ public class DigestUtils {
         }
     }
 
+    @SneakyThrows
+    public static byte[] sha1(ByteBuffer buffer) {
+        try {
+            final var digest = MessageDigest.getInstance("SHA-1");
+            digest.update(buffer);
+            return digest.digest();
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The hash of the buffers' remaining bytes, one after the other.
+     */
+    @SneakyThrows
+    public static byte[] sha1(List<ByteBuffer> buffers) {
+        try {
+            final var digest = MessageDigest.getInstance("SHA-1");
+            for (final var buffer : buffers) {
+                digest.update(buffer);
+            }
+            return digest.digest();
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     @SneakyThrows
     public static byte[] shaInfo(final Object infoRoot) {
         final var infoOutputStream = new ByteArrayOutputStream();
@@ -0,0 +1,109 @@
+package bittorrent.peer.download;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import bittorrent.peer.protocol.Message;
+import bittorrent.util.DigestUtils;
+
+class PieceBufferTest {
+
+	private static final int BLOCK_SIZE = 16;
+
+	@Test
+	void hashesBlocksReceivedInOrder() {
+		final var data = randomBytes(4 * BLOCK_SIZE);
+		final var piece = new PieceBuffer(0, data.length, BLOCK_SIZE);
+
+		for (var begin = 0; begin < data.length; begin += BLOCK_SIZE) {
+			assertTrue(piece.write(begin, ByteBuffer.wrap(data, begin, BLOCK_SIZE)));
+		}
+
+		assertTrue(piece.isComplete());
+		assertArrayEquals(DigestUtils.sha1(ByteBuffer.wrap(data)), piece.digest());
+	}
+
+	@Test
+	void hashesBlocksReceivedOutOfOrder() {
+		// The last block is shorter
+		final var data = randomBytes(4 * BLOCK_SIZE + 5);
+		final var piece = new PieceBuffer(0, data.length, BLOCK_SIZE);
+
+		for (final var blockIndex : new int[] { 4, 2, 0, 3, 1 }) {
+			final var begin = blockIndex * BLOCK_SIZE;
+			assertFalse(piece.isComplete());
+			piece.write(begin, ByteBuffer.wrap(data, begin, Math.min(BLOCK_SIZE, data.length - begin)));
+		}
+
+		assertTrue(piece.isComplete());
+		assertArrayEquals(DigestUtils.sha1(ByteBuffer.wrap(data)), piece.digest());
+	}
+
+	@Test
+	void ignoresBlocksReceivedTwice() {
+		final var data = randomBytes(2 * BLOCK_SIZE);
+		final var piece = new PieceBuffer(0, data.length, BLOCK_SIZE);
+
+		assertTrue(piece.write(0, ByteBuffer.wrap(data, 0, BLOCK_SIZE)));
+		assertFalse(piece.write(0, ByteBuffer.wrap(new byte[BLOCK_SIZE])));
+		assertEquals(BLOCK_SIZE, piece.getBytesReceived());
+
+		piece.write(BLOCK_SIZE, ByteBuffer.wrap(data, BLOCK_SIZE, BLOCK_SIZE));
+		assertArrayEquals(DigestUtils.sha1(ByteBuffer.wrap(data)), piece.digest());
+	}
+
+	@Test
+	void hashesAgainAfterReset() {
+		final var data = randomBytes(2 * BLOCK_SIZE);
+		final var piece = new PieceBuffer(0, data.length, BLOCK_SIZE);
+
+		// A corrupt first attempt
+		piece.write(0, ByteBuffer.wrap(new byte[BLOCK_SIZE]));
+		piece.write(BLOCK_SIZE, ByteBuffer.wrap(data, BLOCK_SIZE, BLOCK_SIZE));
+		piece.digest();
+
+		piece.reset();
+		assertEquals(0, piece.getBytesReceived());
+		assertEquals(2, piece.missingBlocks().size());
+
+		piece.write(BLOCK_SIZE, ByteBuffer.wrap(data, BLOCK_SIZE, BLOCK_SIZE));
+		piece.write(0, ByteBuffer.wrap(data, 0, BLOCK_SIZE));
+		assertArrayEquals(DigestUtils.sha1(ByteBuffer.wrap(data)), piece.digest());
+	}
+
+	@Test
+	void requestsOnlyMissingBlocks() {
+		final var piece = new PieceBuffer(7, 3 * BLOCK_SIZE + 1, BLOCK_SIZE);
+		piece.write(BLOCK_SIZE, ByteBuffer.wrap(new byte[BLOCK_SIZE]));
+
+		assertEquals(List.of(
+			new Message.Request(7, 0, BLOCK_SIZE),
+			new Message.Request(7, 2 * BLOCK_SIZE, BLOCK_SIZE),
+			new Message.Request(7, 3 * BLOCK_SIZE, 1)
+		), piece.missingBlocks());
+	}
+
+	@Test
+	void refusesDigestOfIncompletePiece() {
+		final var piece = new PieceBuffer(0, 2 * BLOCK_SIZE, BLOCK_SIZE);
+		piece.write(0, ByteBuffer.wrap(new byte[BLOCK_SIZE]));
+
+		assertThrows(IllegalStateException.class, piece::digest);
+	}
+
+	private static byte[] randomBytes(int length) {
+		final var data = new byte[length];
+		new Random(length).nextBytes(data);
+		return data;
+	}
+
+}
@@ -0,0 +1,230 @@
+package bittorrent.peer.download;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import bittorrent.torrent.TorrentInfo;
+
+class PiecePickerTest {
+
+	private static final String INFO_HASH = "piecepickertest";
+	private static final int PIECE_COUNT = 8;
+	private static final int PIECE_LENGTH = 16;
+
+	// How many peers have each piece; piece 3 is the rarest, piece 0 the most common
+	private static final int[] AVAILABILITY = { 8, 2, 4, 1, 3, 5, 6, 7 };
+
+	private final TorrentInfo torrentInfo = new TorrentInfo(new byte[20], PIECE_COUNT * PIECE_LENGTH, "data", PIECE_LENGTH, Collections.nCopies(PIECE_COUNT, new byte[20]));
+
+	private PieceAvailability availability;
+
+	@BeforeEach
+	void setUp() {
+		availability = PieceAvailability.forTorrent(INFO_HASH, PIECE_COUNT);
+		for (var pieceIndex = 0; pieceIndex < PIECE_COUNT; pieceIndex++) {
+			for (var count = 0; count < AVAILABILITY[pieceIndex]; count++) {
+				availability.addPiece(pieceIndex);
+			}
+		}
+	}
+
+	@AfterEach
+	void tearDown() {
+		PieceAvailability.remove(INFO_HASH);
+	}
+
+	@Test
+	void picksRarestPiecesFirst() {
+		final var picker = new PiecePicker(PIECE_COUNT, availability);
+		final var session = sessionWith(0, 1, 2, 3, 4, 5, 6, 7);
+
+		assertEquals(List.of(3, 1, 4, 2, 5, 6, 7, 0), pickAll(picker, session));
+	}
+
+	@Test
+	void onlyPicksPiecesThePeerHas() {
+		final var picker = new PiecePicker(PIECE_COUNT, availability);
+		final var session = sessionWith(0, 2, 7);
+
+		assertEquals(List.of(2, 7, 0), pickAll(picker, session));
+	}
+
+	@Test
+	void finishesStartedPiecesBeforeRarerOnes() {
+		final var picker = new PiecePicker(PIECE_COUNT, availability);
+		final var failing = sessionWith(0);
+		final var session = sessionWith(0, 1, 2, 3, 4, 5, 6, 7);
+
+		assertEquals(0, picker.nextPiece(failing));
+		final var partial = new PieceBuffer(0, PIECE_LENGTH, PIECE_LENGTH / 2);
+		partial.write(0, ByteBuffer.wrap(new byte[PIECE_LENGTH / 2]));
+		picker.release(failing, List.of(partial));
+
+		// The most common piece, but half of it is already here
+		assertEquals(0, picker.nextPiece(session));
+		assertSame(partial, picker.takePartialPiece(0));
+	}
+
+	@Test
+	void duplicatesPiecesInFlightOnceNoneArePending() {
+		final var picker = new PiecePicker(PIECE_COUNT, availability);
+		final var first = sessionWith(1, 3);
+		final var second = sessionWith(1, 3);
+		picker.setPriorities(new int[] { 0, 1, 0, 1, 0, 0, 0, 0 });
+
+		assertEquals(3, picker.nextPiece(first));
+		assertEquals(1, picker.nextPiece(second));
+
+		// Endgame: each session gets the piece the other one is on, once
+		assertEquals(1, picker.nextPiece(first));
+		assertEquals(3, picker.nextPiece(second));
+		assertEquals(-1, picker.nextPiece(first));
+		assertEquals(-1, picker.nextPiece(second));
+	}
+
+	@Test
+	void duplicatesTheLeastDuplicatedPiece() {
+		final var picker = new PiecePicker(PIECE_COUNT, availability);
+		final var first = sessionWith(1, 3);
+		final var second = sessionWith(1, 3);
+		final var third = sessionWith(1, 3);
+		picker.setPriorities(new int[] { 0, 1, 0, 1, 0, 0, 0, 0 });
+
+		assertEquals(3, picker.nextPiece(first));
+		assertEquals(1, picker.nextPiece(second));
+		assertEquals(1, picker.nextPiece(first));
+
+		// Piece 1 already has two sessions on it
+		assertEquals(3, picker.nextPiece(third));
+	}
+
+	@Test
+	void firstVerifiedCopyWins() {
+		final var picker = new PiecePicker(PIECE_COUNT, availability);
+		final var first = sessionWith(3);
+		final var second = sessionWith(3);
+		picker.setPriorities(new int[] { 0, 0, 0, 1, 0, 0, 0, 0 });
+
+		assertEquals(3, picker.nextPiece(first));
+		assertEquals(3, picker.nextPiece(second));
+
+		assertTrue(picker.claimWrite(3));
+		assertFalse(picker.claimWrite(3), "second copy written while the first one is");
+		assertTrue(picker.markCompleted(3));
+		assertFalse(picker.markCompleted(3));
+		assertFalse(picker.claimWrite(3), "completed piece written again");
+
+		assertTrue(picker.isComplete());
+		assertEquals(-1, picker.nextPiece(second));
+	}
+
+	@Test
+	void picksPiecesWithDeadlinesFirstEarliestFirst() {
+		final var picker = new PiecePicker(PIECE_COUNT, availability);
+		final var session = sessionWith(0, 1, 2, 3, 4, 5, 6, 7);
+
+		final var now = System.currentTimeMillis();
+		picker.setDeadline(6, now + 200);
+		picker.setDeadline(0, now + 100);
+		picker.setDeadline(6, now + 300);
+
+		// The earlier deadline of piece 6 is kept
+		assertEquals(List.of(0, 6, 3, 1, 4, 2, 5, 7), pickAll(picker, session));
+	}
+
+	@Test
+	void picksPlaybackWindowInOrderAfterDeadlines() {
+		final var picker = new PiecePicker(PIECE_COUNT, availability);
+		final var session = sessionWith(0, 1, 2, 3, 4, 5, 6, 7);
+
+		picker.setDeadline(7, System.currentTimeMillis());
+		picker.setPlaybackWindow(4, 2);
+
+		assertEquals(List.of(7, 4, 5, 3, 1, 2, 6, 0), pickAll(picker, session));
+	}
+
+	@Test
+	void playbackWindowSkipsCompletedPieces() {
+		final var picker = new PiecePicker(PIECE_COUNT, availability);
+		final var session = sessionWith(0, 1, 2, 3, 4, 5, 6, 7);
+
+		picker.markCompleted(5);
+		picker.setPlaybackWindow(4, 2);
+
+		assertEquals(4, picker.nextPiece(session));
+		assertEquals(6, picker.nextPiece(session));
+		assertEquals(3, picker.nextPiece(session));
+	}
+
+	@Test
+	void movingPlaybackDropsDeadlinesBehindIt() {
+		final var picker = new PiecePicker(PIECE_COUNT, availability);
+		final var session = sessionWith(0, 1, 2, 3, 4, 5, 6, 7);
+
+		picker.setDeadline(2, System.currentTimeMillis());
+		picker.setDeadline(6, System.currentTimeMillis() + 100);
+		picker.setPlaybackWindow(4, 1);
+
+		assertEquals(6, picker.nextPiece(session));
+		assertEquals(4, picker.nextPiece(session));
+		assertEquals(3, picker.nextPiece(session));
+	}
+
+	@Test
+	void awaitPiecesReturnsOnceTheRangeIsCompleted() throws Exception {
+		final var picker = new PiecePicker(PIECE_COUNT, availability);
+		picker.markCompleted(2);
+
+		assertTrue(picker.awaitPieces(2, 2, 0));
+		assertFalse(picker.awaitPieces(2, 3, 10), "piece 3 is missing");
+
+		final var completer = new Thread(() -> picker.markCompleted(3));
+		completer.start();
+		assertTrue(picker.awaitPieces(2, 3, 10_000));
+		completer.join();
+	}
+
+	/**
+	 * Picks for {@code session} until nothing is left, without completing
+	 * anything.
+	 */
+	private static List<Integer> pickAll(PiecePicker picker, PeerDownloadSession session) {
+		final var picked = new ArrayList<Integer>();
+		for (var pieceIndex = picker.nextPiece(session); pieceIndex >= 0 && !picked.contains(pieceIndex); pieceIndex = picker.nextPiece(session)) {
+			picked.add(pieceIndex);
+		}
+		return picked;
+	}
+
+	/**
+	 * A session whose peer has {@code pieces}.
+	 */
+	private PeerDownloadSession sessionWith(int... pieces) {
+		final var remotePieces = new BitSet(PIECE_COUNT);
+		for (final var pieceIndex : pieces) {
+			remotePieces.set(pieceIndex);
+		}
+
+		return new PeerDownloadSession(null, torrentInfo, DownloadSettings.DEFAULT) {
+
+			@Override
+			BitSet getRemotePieces() {
+				return (BitSet) remotePieces.clone();
+			}
+
+		};
+	}
+
+}
@@ -0,0 +1,110 @@
+package bittorrent.storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class WriteBackCacheTest {
+
+	private static final int SIZE = 64;
+
+	private final MemoryStorage storage = new MemoryStorage(SIZE);
+
+	// Only flushes on sync
+	private final WriteBackCache cache = new WriteBackCache(storage, Long.MAX_VALUE, 0);
+
+	@Test
+	void readsDataBeforeItIsFlushed() throws Exception {
+		cache.write(8, bytes(8, 1));
+
+		assertArrayEquals(new byte[8], storage.read(8, 8), "flushed before sync");
+		assertArrayEquals(bytes(8, 1), cache.read(8, 8));
+
+		cache.sync();
+		assertArrayEquals(bytes(8, 1), storage.read(8, 8));
+		assertArrayEquals(bytes(8, 1), cache.read(8, 8));
+	}
+
+	@Test
+	void overlaysCachedDataOnStoredData() throws Exception {
+		storage.write(0, bytes(SIZE, 0));
+		cache.write(10, bytes(4, 100));
+		cache.write(20, bytes(4, 200));
+
+		// Starts inside the first entry and ends inside the second one
+		assertArrayEquals(new byte[] { 102, 103, 14, 15, 16, 17, 18, 19, (byte) 200, (byte) 201 }, cache.read(12, 10));
+
+		// Only stored data between the entries
+		assertArrayEquals(new byte[] { 14, 15, 16 }, cache.read(14, 3));
+	}
+
+	@Test
+	void readsTheLatestWriteOfARange() throws Exception {
+		cache.write(0, bytes(8, 1));
+		cache.write(0, bytes(8, 50));
+
+		assertArrayEquals(bytes(8, 50), cache.read(0, 8));
+
+		cache.sync();
+		assertArrayEquals(bytes(8, 50), storage.read(0, 8));
+	}
+
+	@Test
+	void releasesKeptSourcesOnceFlushed() throws Exception {
+		final var released = new AtomicInteger();
+		final var source = ByteBuffer.allocateDirect(8).put(bytes(8, 1)).flip().asReadOnlyBuffer();
+
+		cache.write(source, 0, released::incrementAndGet);
+		assertEquals(0, released.get(), "released while still cached");
+		assertArrayEquals(bytes(8, 1), cache.read(0, 8));
+
+		cache.sync();
+		assertEquals(1, released.get());
+		assertArrayEquals(bytes(8, 1), cache.read(0, 8));
+	}
+
+	@Test
+	void releasesCopiedSourcesAtOnce() throws Exception {
+		final var released = new AtomicInteger();
+		final var source = ByteBuffer.wrap(bytes(8, 1));
+
+		cache.write(source, 0, released::incrementAndGet);
+		assertEquals(1, released.get());
+		assertFalse(source.hasRemaining());
+
+		// The copy does not see later changes to the source
+		source.array()[0] = 99;
+		assertArrayEquals(bytes(8, 1), cache.read(0, 8));
+	}
+
+	@Test
+	void neverReleasesReplacedSources() throws Exception {
+		final var released = new AtomicInteger();
+		final var first = ByteBuffer.allocateDirect(8).put(bytes(8, 1)).flip().asReadOnlyBuffer();
+		final var second = ByteBuffer.allocateDirect(8).put(bytes(8, 2)).flip().asReadOnlyBuffer();
+
+		cache.write(first, 0, () -> released.addAndGet(10));
+		cache.write(second, 0, released::incrementAndGet);
+
+		cache.sync();
+		assertEquals(1, released.get());
+		assertArrayEquals(bytes(8, 2), storage.read(0, 8));
+	}
+
+	/**
+	 * {@code length} bytes counting up from {@code first}.
+	 */
+	private static byte[] bytes(int length, int first) {
+		final var data = new byte[length];
+		for (var index = 0; index < length; index++) {
+			data[index] = (byte) (first + index);
+		}
+		return data;
+	}
+
+}
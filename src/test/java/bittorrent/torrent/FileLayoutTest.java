@@ -0,0 +1,80 @@
+package bittorrent.torrent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import bittorrent.torrent.FileLayout.Span;
+
+class FileLayoutTest {
+
+	// Files at [0, 10), [10, 10), [10, 30), [30, 30) and [30, 35)
+	private final FileLayout layout = new FileLayout(List.of(
+		new TorrentFile(List.of("a"), 10, 0),
+		new TorrentFile(List.of("empty1"), 0, 10),
+		new TorrentFile(List.of("b"), 20, 10),
+		new TorrentFile(List.of("empty2"), 0, 30),
+		new TorrentFile(List.of("c"), 5, 30)));
+
+	@Test
+	void findsTheFileHoldingEachPosition() {
+		assertEquals(35, layout.getLength());
+
+		assertEquals(0, layout.fileAt(0));
+		assertEquals(0, layout.fileAt(9));
+		assertEquals(2, layout.fileAt(10));
+		assertEquals(2, layout.fileAt(29));
+		assertEquals(4, layout.fileAt(30));
+		assertEquals(4, layout.fileAt(34));
+	}
+
+	@Test
+	void keepsRangesInsideOneFileInOneSpan() {
+		assertEquals(List.of(new Span(0, 0, 0, 10)), layout.spans(0, 10));
+		assertEquals(List.of(new Span(2, 5, 0, 3)), layout.spans(15, 3));
+		assertEquals(List.of(new Span(4, 4, 0, 1)), layout.spans(34, 1));
+	}
+
+	@Test
+	void splitsRangesAcrossFilesAndSkipsEmptyOnes() {
+		assertEquals(List.of(
+			new Span(0, 8, 0, 2),
+			new Span(2, 0, 2, 20),
+			new Span(4, 0, 22, 3)
+		), layout.spans(8, 25));
+
+		assertEquals(List.of(
+			new Span(0, 0, 0, 10),
+			new Span(2, 0, 10, 20),
+			new Span(4, 0, 30, 5)
+		), layout.spans(0, 35));
+	}
+
+	@Test
+	void emptyRangesHaveNoSpans() {
+		assertEquals(List.of(), layout.spans(10, 0));
+		assertEquals(List.of(), layout.spans(35, 0));
+	}
+
+	@Test
+	void trailingEmptyFileHoldsNothing() {
+		final var trailing = new FileLayout(List.of(
+			new TorrentFile(List.of("a"), 4, 0),
+			new TorrentFile(List.of("empty"), 0, 4)));
+
+		assertEquals(0, trailing.fileAt(3));
+		assertEquals(List.of(new Span(0, 0, 0, 4)), trailing.spans(0, 4));
+		assertEquals(List.of(), trailing.spans(4, 0));
+	}
+
+	@Test
+	void rejectsRangesOutsideTheData() {
+		assertThrows(IndexOutOfBoundsException.class, () -> layout.spans(30, 6));
+		assertThrows(IndexOutOfBoundsException.class, () -> layout.spans(-1, 1));
+		assertThrows(IndexOutOfBoundsException.class, () -> layout.spans(0, -1));
+	}
+
+}
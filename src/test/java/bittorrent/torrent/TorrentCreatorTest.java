@@ -0,0 +1,85 @@
+package bittorrent.torrent;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import bittorrent.util.DigestUtils;
+
+class TorrentCreatorTest {
+
+	private static final int MIB = 1024 * 1024;
+
+	@TempDir
+	Path temporary;
+
+	@Test
+	void choosesPowerOfTwoPieceLengths() {
+		assertEquals(MIB, TorrentCreator.pieceLengthFor(1500L * MIB));
+		assertEquals(MIB / 2, TorrentCreator.pieceLengthFor(1500L * MIB - 1));
+		assertEquals(2 * MIB, TorrentCreator.pieceLengthFor(4000L * MIB));
+	}
+
+	@Test
+	void keepsPieceLengthsWithinBounds() {
+		assertEquals(TorrentCreator.MIN_PIECE_LENGTH, TorrentCreator.pieceLengthFor(0));
+		assertEquals(TorrentCreator.MIN_PIECE_LENGTH, TorrentCreator.pieceLengthFor(10L * MIB));
+		assertEquals(TorrentCreator.MAX_PIECE_LENGTH, TorrentCreator.pieceLengthFor(1L << 50));
+	}
+
+	@Test
+	void choosesPieceLengthWhenNoneIsGiven() throws Exception {
+		final var file = temporary.resolve("file");
+		Files.write(file, randomBytes(100_000, 1));
+
+		final var info = new TorrentCreator(2).createInfo(file, 0);
+
+		assertEquals((long) TorrentCreator.MIN_PIECE_LENGTH, info.get("piece length"));
+		assertEquals(100_000L, info.get("length"));
+		assertNull(info.get("files"));
+	}
+
+	/**
+	 * Enough pieces to be hashed by several tasks, with pieces across file
+	 * boundaries and an empty file in between.
+	 */
+	@Test
+	void hashesPiecesAcrossFilesInParallel() throws Exception {
+		final var directory = Files.createDirectory(temporary.resolve("data"));
+		final var all = new ByteArrayOutputStream();
+		for (final var name : List.of("a", "b", "c", "d")) {
+			final var data = randomBytes(name.equals("b") ? 0 : 100_001, name.charAt(0));
+			Files.write(directory.resolve(name), data);
+			all.write(data);
+		}
+
+		final var pieceLength = TorrentCreator.MIN_PIECE_LENGTH;
+		final var info = new TorrentCreator(4).createInfo(directory, pieceLength);
+
+		final var data = all.toByteArray();
+		final var expected = ByteBuffer.allocate((data.length + pieceLength - 1) / pieceLength * 20);
+		for (var start = 0; start < data.length; start += pieceLength) {
+			expected.put(DigestUtils.sha1(ByteBuffer.wrap(data, start, Math.min(pieceLength, data.length - start))));
+		}
+
+		assertArrayEquals(expected.array(), (byte[]) info.get("pieces"));
+		assertEquals(4, ((List<?>) info.get("files")).size());
+	}
+
+	private static byte[] randomBytes(int length, long seed) {
+		final var data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+}
@@ -0,0 +1,77 @@
+package bittorrent.torrent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import bittorrent.storage.MultiFileStorage;
+import bittorrent.storage.StorageType;
+import bittorrent.util.DigestUtils;
+
+class VerifiedPiecesTest {
+
+	private static final int PIECE_LENGTH = 16;
+
+	@TempDir
+	Path temporary;
+
+	/**
+	 * The boundary pieces of a skipped middle file have their edges in the
+	 * parts file; a restart must still find them verified.
+	 */
+	@Test
+	void keepsBoundaryPiecesOfSkippedFileAfterRestart() throws Exception {
+		// Files end at 40 and 90, inside pieces 2 and 5
+		final var layout = new FileLayout(List.of(
+			new TorrentFile(List.of("first"), 40, 0),
+			new TorrentFile(List.of("middle"), 50, 40),
+			new TorrentFile(List.of("last"), 30, 90)));
+		final var data = new byte[(int) layout.getLength()];
+		new Random(1).nextBytes(data);
+
+		final var pieces = new ArrayList<byte[]>();
+		for (var start = 0; start < data.length; start += PIECE_LENGTH) {
+			pieces.add(DigestUtils.sha1(ByteBuffer.wrap(data, start, Math.min(PIECE_LENGTH, data.length - start))));
+		}
+		final var torrentInfo = new TorrentInfo(new byte[20], data.length, "data", PIECE_LENGTH, pieces, layout.getFiles());
+
+		// Download every piece touching the first or last file
+		final var directory = temporary.resolve("data");
+		final var skipped = new BitSet();
+		skipped.set(1);
+		final var written = new BitSet();
+		try (var storage = new MultiFileStorage(directory, layout, PIECE_LENGTH, StorageType.FILE, true, skipped)) {
+			for (final var pieceIndex : new int[] { 0, 1, 2, 5, 6, 7 }) {
+				final var start = pieceIndex * PIECE_LENGTH;
+				storage.write(ByteBuffer.wrap(data, start, Math.min(PIECE_LENGTH, data.length - start)), start);
+				written.set(pieceIndex);
+			}
+		}
+
+		assertFalse(Files.exists(directory.resolve("middle")), "skipped file was created");
+		assertTrue(Files.exists(temporary.resolve("data.parts")));
+
+		// Restart: nothing is known until the data is scanned
+		final var infoHashHex = "verifiedpiecestest";
+		try {
+			final var verifiedPieces = VerifiedPieces.forTorrent(infoHashHex, pieces.size());
+			verifiedPieces.loadOnce(directory.toFile(), torrentInfo);
+
+			assertEquals(written, verifiedPieces.snapshot());
+		} finally {
+			VerifiedPieces.remove(infoHashHex);
+		}
+	}
+
+}